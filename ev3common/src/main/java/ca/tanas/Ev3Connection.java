@@ -13,6 +13,8 @@ import java.io.OutputStream;
 import java.util.UUID;
 
 import ca.tanas.ev3common.R;
+import lego.ev3.core.FrameDecoder;
+import lego.ev3.core.FrameWriter;
 import lego.ev3.core.ICommunication;
 
 /**
@@ -27,6 +29,7 @@ public class Ev3Connection  implements ICommunication {
     private BluetoothSocket btSocket = null;
     private OutputStream outputStream = null;
     private InputStream inputStream = null;
+    private FrameWriter writer = null;
     private IReportReceiver reportReceiver;
 
     public Ev3Connection(Activity parent, String address) {
@@ -64,23 +67,35 @@ public class Ev3Connection  implements ICommunication {
             btSocket.connect();
             outputStream = btSocket.getOutputStream();
             inputStream = btSocket.getInputStream();
+            final FrameWriter w = new FrameWriter(outputStream, "EV3 writer " + address);
+            w.setWriteFailedListener(new FrameWriter.WriteFailedListener() {
+                @Override
+                public void OnWriteFailed(IOException e) {
+                    Log.e("Ev3", "Write to " + address + " failed", e);
+                    // frames queued from now on would be dropped silently, so drop the connection instead
+                    if (writer == w)
+                        Disconnect();
+                }
+            });
+            writer = w;
+            w.Start();
 
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                while (inputStream != null) {
+                FrameDecoder decoder = new FrameDecoder();
+                InputStream stream;
+                while ((stream = inputStream) != null) {
                     try {
-                        int len = inputStream.read() | inputStream.read() << 8;
-                        byte[] buffer = new byte[len];
-                        if (reportReceiver != null)
-                            reportReceiver.ReceiveReport(buffer);
+                        if (!decoder.Read(stream, reportReceiver) && inputStream != null)
+                            Disconnect();
                     } catch (IOException e) {
                         if (inputStream != null)
                             Disconnect();
                     }
                 }
                 }
-            }).start();
+            }, "EV3 reader " + address).start();
         } catch (Exception e) {
             Toast.makeText(parentActivity, R.string.could_not_connect,
                     Toast.LENGTH_LONG).show();
@@ -98,6 +113,17 @@ public class Ev3Connection  implements ICommunication {
         } catch (Exception e) {
             Log.e("Ev3", "Close input stream: ", e);
         }
+        if (writer != null) {
+            FrameWriter w = writer;
+            writer = null;
+            w.Close();
+            try {
+                // let frames already queued, such as a final stop, reach the brick
+                w.Join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
             if (outputStream != null) {
                 outputStream.flush();
@@ -122,10 +148,15 @@ public class Ev3Connection  implements ICommunication {
     }
 
     public void Write(byte[] buffer) {
+        Write(buffer, 0, buffer.length);
+    }
+
+    public void Write(byte[] buffer, int offset, int length) {
         try {
-            if (outputStream != null)
+            FrameWriter w = writer;
+            if (w != null)
             {
-                outputStream.write(buffer);
+                w.Write(buffer, offset, length);
                 //StringBuilder sb = new StringBuilder();
                 //sb.append(String.format("%d bytes: ", buffer.length));
                 //for (byte b : buffer) {
@@ -138,6 +169,20 @@ public class Ev3Connection  implements ICommunication {
         }
     }
 
+    @Override
+    public void WriteLatest(int ports, byte[] buffer, int offset, int length) {
+        FrameWriter w = writer;
+        if (w != null)
+            w.WriteLatest(ports, buffer, offset, length);
+    }
+
+    /**
+     * Statistics for the queue of frames waiting to be sent, or null when not connected.
+     */
+    public FrameWriter getWriter() {
+        return writer;
+    }
+
     public boolean isConnected() {
         return outputStream != null;
     }
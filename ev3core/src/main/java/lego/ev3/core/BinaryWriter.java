@@ -0,0 +1,141 @@
+package lego.ev3.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Created by Andrei Tanas on 14-11-27.
+ */
+public class BinaryWriter {
+    private static final int DefaultCapacity = 64;
+
+    private byte[] buffer;
+    private int size;
+
+    public BinaryWriter() {
+        this(DefaultCapacity);
+    }
+
+    public BinaryWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 1)];
+    }
+
+    public void Write(byte value) {
+        EnsureCapacity(1);
+        buffer[size++] = value;
+    }
+
+    public void Write(short value) {
+        EnsureCapacity(2);
+        buffer[size] = (byte)value;
+        buffer[size + 1] = (byte)(value >> 8);
+        size += 2;
+    }
+
+    public void Write(int value) {
+        EnsureCapacity(4);
+        buffer[size] = (byte)value;
+        buffer[size + 1] = (byte)(value >> 8);
+        buffer[size + 2] = (byte)(value >> 16);
+        buffer[size + 3] = (byte)(value >> 24);
+        size += 4;
+    }
+
+    public void Write(byte[] value) {
+        Write(value, 0, value.length);
+    }
+
+    public void Write(byte[] value, int index, int count) {
+        EnsureCapacity(count);
+        System.arraycopy(value, index, buffer, size, count);
+        size += count;
+    }
+
+    /// <summary>
+    /// Overwrite a byte at a position that has already been written
+    /// </summary>
+    /// <param name="position">Offset of the byte to overwrite</param>
+    /// <param name="value">The new value</param>
+    public void Put(int position, byte value) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("position");
+        buffer[position] = value;
+    }
+
+    /// <summary>
+    /// Overwrite a little-endian short at a position that has already been written
+    /// </summary>
+    /// <param name="position">Offset of the first byte to overwrite</param>
+    /// <param name="value">The new value</param>
+    public void Put(int position, short value) {
+        if (position < 0 || position + 2 > size)
+            throw new IndexOutOfBoundsException("position");
+        buffer[position] = (byte)value;
+        buffer[position + 1] = (byte)(value >> 8);
+    }
+
+    /// <summary>
+    /// Number of bytes written so far
+    /// </summary>
+    public int Size() {
+        return size;
+    }
+
+    /// <summary>
+    /// Discard the contents but keep the backing store so the writer can be reused
+    /// </summary>
+    public void Reset() {
+        size = 0;
+    }
+
+    public byte[] ToArray() {
+        byte[] array = new byte[size];
+        System.arraycopy(buffer, 0, array, 0, size);
+        return array;
+    }
+
+    /// <summary>
+    /// Copy the written bytes into the destination buffer, starting at its current position
+    /// </summary>
+    public void CopyTo(ByteBuffer destination) {
+        destination.put(buffer, 0, size);
+    }
+
+    /// <summary>
+    /// Append the written bytes from the given offset onwards to another writer
+    /// </summary>
+    public void CopyTo(BinaryWriter destination, int offset) {
+        CopyTo(destination, offset, size - offset);
+    }
+
+    /// <summary>
+    /// Append part of the written bytes to another writer
+    /// </summary>
+    public void CopyTo(BinaryWriter destination, int offset, int count) {
+        if (offset < 0 || offset + count > size)
+            throw new IndexOutOfBoundsException("offset");
+        destination.Write(buffer, offset, count);
+    }
+
+    /// <summary>
+    /// A little-endian view of the written bytes which shares the backing store.  The view is only valid until the
+    /// next write or reset.
+    /// </summary>
+    public ByteBuffer AsByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void EnsureCapacity(int count) {
+        int required = size + count;
+        if (required <= buffer.length)
+            return;
+
+        int capacity = buffer.length;
+        while (capacity < required)
+            capacity <<= 1;
+
+        byte[] grown = new byte[capacity];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,927 @@
+package lego.ev3.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * see https://legoev3.codeplex.com/SourceControl/latest#Lego.Ev3.Core/Brick.cs
+ */
+
+/// <summary>
+/// Main EV3 brick interface.  Each brick has its own sequence numbers, response table, in-flight window and pools and
+/// shares no locks with other bricks, so one process can drive any number of bricks at once.
+/// </summary>
+public class Brick implements ICommunication.IReportReceiver {
+    /// <summary>
+    /// Width of LCD screen
+    /// </summary>
+    public short LcdWidth = 178;
+
+    /// <summary>
+    /// Height of LCD screen
+    /// </summary>
+    public short LcdHeight = 128;
+
+    /// <summary>
+    /// Height of status bar
+    /// </summary>
+    public short TopLineHeight = 10;
+
+    // how many reply commands may be waiting for their replies at the same time, see setMaxInFlight
+    private static final int DefaultMaxInFlight = 8;
+    private static final int MaxInFlightLimit = 256;
+
+    // bounds of the pools that let steady polling and driving run without allocating, see AcquireCommand
+    private static final int CommandPoolSize = 16;
+    private static final int BufferPoolSize = 32;
+
+    private static final Enums.InputPort[] Inputs = Enums.InputPort.values();
+    // the buttons read by PollSensors, in the order of _pollButtons
+    private static final Enums.BrickButton[] PollButtons = {
+            Enums.BrickButton.Back, Enums.BrickButton.Left, Enums.BrickButton.Up,
+            Enums.BrickButton.Right, Enums.BrickButton.Down, Enums.BrickButton.Enter };
+
+    private final SynchronizationContext _context = SynchronizationContext.Current;
+    private final ICommunication _comm;
+    private final boolean _alwaysSendEvents;
+    private final DirectCommand _directCommand;
+    private final SystemCommand _systemCommand;
+    private final Command _batchCommand;
+    // guards encoding, the order frames are queued in and the auto-batch; a j.u.c. lock rather than a monitor so that
+    // threads waiting for it, including virtual threads, are not pinned.  Frames are written after it is released,
+    // see WriteQueued.
+    private final ReentrantLock _lock = new ReentrantLock();
+    // held by the one thread writing queued frames to the transport; only ever taken with tryLock
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    // encoded frames waiting to be written, in the order they were encoded; guarded by _lock
+    private final ArrayDeque<Outgoing> _outgoing = new ArrayDeque<Outgoing>();
+    private final ArrayBlockingQueue<Outgoing> _outgoingPool = new ArrayBlockingQueue<Outgoing>(BufferPoolSize);
+    private final ArrayBlockingQueue<Command> _commandPool = new ArrayBlockingQueue<Command>(CommandPoolSize);
+    private final ArrayBlockingQueue<byte[]> _bufferPool = new ArrayBlockingQueue<byte[]>(BufferPoolSize);
+    private final InFlightWindow _window = new InFlightWindow(DefaultMaxInFlight);
+    // asynchronous reply commands waiting for room in the window
+    private final ConcurrentLinkedQueue<Command> _windowQueue = new ConcurrentLinkedQueue<Command>();
+    // requests to drain the window queue; only the thread that takes it from 0 drains, see DrainWindowQueue
+    private final AtomicInteger _drainRequests = new AtomicInteger();
+    private final ResponseCorrelator _responses = new ResponseCorrelator(new Runnable() {
+        @Override
+        public void run() {
+            _window.release();
+            DrainWindowQueue();
+        }
+    }, new Runnable() {
+        @Override
+        public void run() {
+            // a deadline passed, on the timing wheel thread every brick shares: sending the queued commands could
+            // block on this brick's link and hold up the timeouts of all the others, so it is left to _sender
+            _window.release();
+            if (!_windowQueue.isEmpty() && _drainScheduled.compareAndSet(false, true))
+                _sender.execute(_drainScheduledQueue);
+        }
+    });
+    // sends commands waiting for the window once a timed out command has made room; its one thread is started when
+    // needed and stops when idle
+    private final ThreadPoolExecutor _sender = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EV3 sender");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicBoolean _drainScheduled = new AtomicBoolean();
+    private final Runnable _drainScheduledQueue = new Runnable() {
+        @Override
+        public void run() {
+            _drainScheduled.set(false);
+            DrainWindowQueue();
+        }
+    };
+    private Command _autoBatch;
+    private long _autoBatchWindow;
+    private Timer _autoBatchTimer;
+    private boolean _autoBatchFlushScheduled;
+
+    // the sensor poll is built once and sent again for as long as the port modes stay the same; indexed by Port.Index
+    // reads the sensors and buttons after Connect(long); guarded by _lock
+    private Timer _pollTimer;
+    private Command _poll;
+    private final byte[] _pollModes = new byte[Inputs.length];
+    private final ReplyValue.TypeModeValue[] _pollTypeModes = new ReplyValue.TypeModeValue[Inputs.length];
+    private final ReplyValue.FloatValue[] _pollSIValues = new ReplyValue.FloatValue[Inputs.length];
+    private final ReplyValue.IntValue[] _pollRawValues = new ReplyValue.IntValue[Inputs.length];
+    private final ReplyValue.ByteValue[] _pollPercentValues = new ReplyValue.ByteValue[Inputs.length];
+    private final ReplyValue.ByteValue[] _pollButtons = new ReplyValue.ByteValue[PollButtons.length];
+
+    /// <summary>
+    /// Input and output ports on LEGO EV3 brick
+    /// </summary>
+    public Dictionary<Enums.InputPort, Port> Ports;
+
+    /// <summary>
+    /// Buttons on the face of the LEGO EV3 brick
+    /// </summary>
+    public BrickButtons Buttons;
+
+    /// <summary>
+    /// Send "direct commands" to the EV3 brick.  These commands are executed instantly and are not batched.
+    /// </summary>
+    public DirectCommand getDirectCommand() {
+        return _directCommand;
+    }
+
+    /// <summary>
+    /// Send "system commands" to the EV3 brick.  These commands are executed instantly and are not batched.
+    /// </summary>
+    public SystemCommand getSystemCommand() {
+        return _systemCommand;
+    }
+
+    /// <summary>
+    /// Send a batch command of multiple direct commands at once.  Call the <see cref="Command.Initialize"/> method with the proper <see cref="CommandType"/> to set the type of command the batch should be executed as.
+    /// </summary>
+    public Command getBatchCommand() {
+        return _batchCommand;
+    }
+
+    /// <summary>
+    /// Event that is fired when a port is changed
+    /// </summary>
+    public BrickChangedListener brickChangeListener;
+
+    /// <summary>
+    /// Constructor
+    /// </summary>
+    /// <param name="comm">Object implementing the <see cref="ICommunication"/> interface for talking to the brick</param>
+    public Brick(ICommunication comm) throws ArgumentException {
+        this(comm, false);
+    }
+
+    /// <summary>
+    /// Constructor
+    /// </summary>
+    /// <param name="comm">Object implementing the <see cref="ICommunication"/> interface for talking to the brick</param>
+    /// <param name="alwaysSendEvents">Send events when data changes, or at every poll</param>
+    public Brick(ICommunication comm, boolean alwaysSendEvents) throws ArgumentException {
+        _directCommand = new DirectCommand(this);
+        _systemCommand = new SystemCommand(this);
+        _batchCommand = new Command(this);
+
+        Buttons = new BrickButtons();
+
+        _alwaysSendEvents = alwaysSendEvents;
+
+        int index = 0;
+
+        _comm = comm;
+        _comm.SetReportReceiver(this);
+
+        Ports = new Hashtable<Enums.InputPort, Port>();
+
+        for (Enums.InputPort i : Enums.InputPort.values()) {
+            Port port = new Port();
+            port.InputPort = i;
+            port.Index = index++;
+            port.setName(String.valueOf(i));
+            Ports.put(i, port);
+        }
+    }
+
+    /// <summary>
+    /// Connect to the EV3 brick.
+    /// </summary>
+    /// <returns></returns>
+    public void Connect() throws ArgumentException {
+        _comm.Connect();
+        _directCommand.StopMotor(OutputPort.All, false);
+    }
+
+    /// <summary>
+    /// Connect to the EV3 brick and read the sensors and buttons periodically, updating <see cref="Ports"/> and
+    /// <see cref="Buttons"/> and notifying the <see cref="BrickChangedListener"/>.
+    /// </summary>
+    /// <param name="pollingMillis">Time between polls, in milliseconds</param>
+    public void Connect(long pollingMillis) throws ArgumentException {
+        Connect();
+
+        Timer timer = new Timer("EV3 poll", true);
+        _lock.lock();
+        try {
+            if (_pollTimer != null)
+                _pollTimer.cancel();
+            _pollTimer = timer;
+        } finally {
+            _lock.unlock();
+        }
+        // fixed delay rather than fixed rate, so polls that take longer than the period do not pile up
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    PollSensors();
+                } catch (ArgumentException e) {
+                    // cannot happen: the poll only reads ports and buttons that exist
+                } catch (RuntimeException e) {
+                    // the link is gone; keep what was last read rather than kill the timer thread
+                    cancel();
+                }
+            }
+        }, pollingMillis, pollingMillis);
+    }
+
+    /// <summary>
+    /// Disconnect from the EV3 brick
+    /// </summary>
+    public void Disconnect() {
+        _lock.lock();
+        try {
+            StopAutoBatch();
+            if (_pollTimer != null) {
+                _pollTimer.cancel();
+                _pollTimer = null;
+            }
+        } finally {
+            _lock.unlock();
+        }
+        WriteQueued();
+        _comm.Disconnect();
+    }
+
+    /// <summary>
+    /// Merge direct commands that expect no reply into a single frame instead of sending each one on its own.
+    /// Commands are held until the window elapses, the frame is full, a command that cannot be merged is sent, or
+    /// <see cref="Flush"/> is called.
+    /// </summary>
+    /// <param name="enabled">Turn auto-batching on or off.  Turning it off sends anything still pending.</param>
+    /// <param name="windowMillis">How long to hold the first pending command, in milliseconds; 0 to only send on <see cref="Flush"/></param>
+    public void setAutoBatch(boolean enabled, long windowMillis) throws ArgumentException {
+        _lock.lock();
+        try {
+            if (enabled) {
+                if (_autoBatch == null)
+                    _autoBatch = new Command(Enums.CommandType.DirectNoReply);
+                if (windowMillis > 0 && _autoBatchTimer == null)
+                    _autoBatchTimer = new Timer("EV3 auto-batch", true);
+                _autoBatchWindow = windowMillis;
+            } else {
+                StopAutoBatch();
+            }
+        } finally {
+            _lock.unlock();
+        }
+        WriteQueued();
+    }
+
+    private void StopAutoBatch() {
+        if (_autoBatch == null)
+            return;
+
+        FlushBatch();
+        _autoBatch = null;
+        if (_autoBatchTimer != null) {
+            _autoBatchTimer.cancel();
+            _autoBatchTimer = null;
+        }
+    }
+
+    /// <summary>
+    /// Set how many commands that expect a reply may be sent before the first of them has been answered.  Once the
+    /// window is full, <see cref="SendCommand"/> blocks and <see cref="SendCommandAsync"/> queues the command until a
+    /// reply arrives or times out.
+    /// </summary>
+    /// <param name="maxInFlight">Size of the window (1 to 256); 1 sends one command per round trip</param>
+    public void setMaxInFlight(int maxInFlight) throws ArgumentException {
+        if (maxInFlight < 1 || maxInFlight > MaxInFlightLimit)
+            throw new ArgumentException("Window must be between 1 and " + MaxInFlightLimit + " inclusive.", "maxInFlight");
+
+        _window.Resize(maxInFlight);
+        DrainWindowQueue();
+    }
+
+    public int getMaxInFlight() {
+        return _window.getSize();
+    }
+
+    /// <summary>
+    /// Number of replies dropped because they arrived after their command was given up, e.g. timed out
+    /// </summary>
+    public long getStaleReplies() {
+        return _responses.getStaleReplies();
+    }
+
+    /// <summary>
+    /// Number of replies dropped because their command had already been answered
+    /// </summary>
+    public long getDuplicateReplies() {
+        return _responses.getDuplicateReplies();
+    }
+
+    /// <summary>
+    /// Number of replies dropped because they match no command sent by this brick, or are malformed
+    /// </summary>
+    public long getUnknownReplies() {
+        return _responses.getUnknownReplies();
+    }
+
+    public boolean isAutoBatch() {
+        _lock.lock();
+        try {
+            return _autoBatch != null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Send any direct commands held back by auto-batching.
+    /// </summary>
+    public void Flush() {
+        _lock.lock();
+        try {
+            FlushBatch();
+        } finally {
+            _lock.unlock();
+        }
+        WriteQueued();
+    }
+
+    @Override
+    public void ReceiveReport(byte[] data) {
+        ReceiveReport(data, data.length);
+    }
+
+    @Override
+    public void ReceiveReport(byte[] buffer, int length) {
+        if (!_responses.HandleResponse(buffer, length))
+            ReleaseBuffer(buffer);
+    }
+
+    @Override
+    public byte[] AcquireBuffer(int length) {
+        if (length > Command.MaxFrameSize)
+            return new byte[length];
+
+        byte[] buffer = _bufferPool.poll();
+        return buffer != null ? buffer : new byte[Command.MaxFrameSize];
+    }
+
+    private void ReleaseBuffer(byte[] buffer) {
+        // only buffers handed out by AcquireBuffer have this size
+        if (buffer != null && buffer.length == Command.MaxFrameSize)
+            _bufferPool.offer(buffer);
+    }
+
+    /// <summary>
+    /// Take a command from this brick's pool.  The caller owns it until it is handed back with
+    /// <see cref="ReleaseCommand"/>: build it, send it, read the reply, then release it.  Neither the command nor its
+    /// <see cref="Response"/> may be used after that.
+    /// </summary>
+    /// <param name="commandType">The type of the command to start</param>
+    public Command AcquireCommand(Enums.CommandType commandType) throws ArgumentException {
+        return AcquireCommand(commandType, (short)0, 0);
+    }
+
+    /// <summary>
+    /// Take a command with a global and/or local buffer from this brick's pool, see <see cref="AcquireCommand"/>
+    /// </summary>
+    public Command AcquireCommand(Enums.CommandType commandType, short globalSize, int localSize) throws ArgumentException {
+        Command c = _commandPool.poll();
+        if (c == null)
+            return new Command(commandType, globalSize, localSize);
+
+        c.Initialize(commandType, globalSize, localSize);
+        return c;
+    }
+
+    /// <summary>
+    /// Hand a command from <see cref="AcquireCommand"/> back to the pool, together with the buffer its reply was
+    /// received in.  Commands are dropped when the pool is full.
+    /// </summary>
+    public void ReleaseCommand(Command c) {
+        ReleaseBuffer(c.Response.DetachBuffer());
+        _commandPool.offer(c);
+    }
+
+    void SendCommand(Command c) throws ArgumentException {
+        if (c.NeedsSplit()) {
+            SendSplit(c);
+            return;
+        }
+
+        if (!Command.ExpectsReply(c.CommandType)) {
+            Send(c);
+            return;
+        }
+
+        c.Response.Reset();
+        c.ClearReplyValues();
+        _window.acquireUninterruptibly();
+        SendInWindow(c);
+        AwaitReply(c);
+    }
+
+    /// <summary>
+    /// Send reply commands one after the other without waiting for each reply in turn, then wait for all the replies.
+    /// Blocks while the in-flight window is full, so at most the window is outstanding at once.  Commands are sent in
+    /// order; each one's reply is decoded as by <see cref="SendCommand"/>.
+    /// </summary>
+    void SendCommands(List<Command> commands) {
+        for (int i = 0; i < commands.size(); i++) {
+            Command c = commands.get(i);
+            c.Response.Reset();
+            c.ClearReplyValues();
+            _window.acquireUninterruptibly();
+            SendInWindow(c);
+        }
+        for (int i = 0; i < commands.size(); i++)
+            AwaitReply(commands.get(i));
+    }
+
+    // waits for the reply to a command sent with SendInWindow and decodes it
+    private void AwaitReply(Command c) {
+        _responses.WaitForResponse(c.Response);
+        // a frame another thread failed to write is reported here, as if this thread had written it
+        Throwable failure = c.Response.getFailure();
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException)failure;
+        c.FillReplyValues();
+    }
+
+    /// <summary>
+    /// Send a command without waiting for its reply.  The future completes, on the thread that receives replies, once
+    /// the reply has been decoded into the command's <see cref="Command.Response"/> and reply values; it fails with a
+    /// TimeoutException if no reply arrives within the command's <see cref="Command.Timeout"/>.  Commands that expect no reply complete immediately.
+    /// </summary>
+    /// <param name="c">The command to send</param>
+    /// <returns>A future for the command itself</returns>
+    public CompletableFuture<Command> SendCommandAsync(final Command c) throws ArgumentException {
+        if (c.NeedsSplit())
+            return SendSplitAsync(c);
+
+        if (!Command.ExpectsReply(c.CommandType)) {
+            Send(c);
+            return CompletableFuture.completedFuture(c);
+        }
+
+        c.Response.Reset();
+        c.ClearReplyValues();
+        CompletableFuture<Command> future = c.Response.getFuture().thenApply(new Function<Response, Command>() {
+            @Override
+            public Command apply(Response response) {
+                c.FillReplyValues();
+                return c;
+            }
+        });
+
+        // never block here: this may run on the thread that receives the replies which free up the window
+        if (_window.tryAcquire()) {
+            SendInWindow(c);
+        } else {
+            // the deadline runs from now, so a command cannot wait for the window indefinitely
+            c.Response.Enqueue();
+            _responses.StartDeadline(c.Response, c.Timeout);
+            _windowQueue.add(c);
+            DrainWindowQueue();
+        }
+        return future;
+    }
+
+    // sends queued commands while the window has room; called whenever a command is queued or a permit is released,
+    // so a command queued just as the last reply arrives is not left behind.  A call made while another thread, or a
+    // caller further up the stack, is draining leaves the queue to it and that drain goes round once more.
+    private void DrainWindowQueue() {
+        if (_drainRequests.getAndIncrement() != 0)
+            return;
+
+        int requests = 1;
+        do {
+            while (!_windowQueue.isEmpty() && _window.tryAcquire()) {
+                Command c = _windowQueue.poll();
+                if (c == null) {
+                    _window.release();
+                    break;
+                }
+                if (!c.Response.Dequeue()) {
+                    // timed out while it waited
+                    _window.release();
+                    continue;
+                }
+                try {
+                    SendInWindow(c);
+                } catch (RuntimeException e) {
+                    // reported through the command's future
+                }
+            }
+            requests = _drainRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    // sends a reply command that holds a window permit.  If it cannot be sent the response fails with the error and
+    // the permit is handed back, so a failing transport cannot shrink the window until every caller blocks.
+    private void SendInWindow(Command c) {
+        try {
+            Queue(c);
+        } catch (RuntimeException e) {
+            Response r = c.Response;
+            if (!r.Registered) {
+                _window.release();
+                DrainWindowQueue();
+            } else if (!_responses.Unregister(r)) {
+                // the reply or the deadline got there first and has returned the permit
+                throw e;
+            }
+            r.Fail(e);
+            throw e;
+        }
+        WriteQueued();
+    }
+
+    private void Send(Command c) {
+        Queue(c);
+        WriteQueued();
+    }
+
+    // adds the command to the pending batch, or encodes it for WriteQueued
+    private void Queue(Command c) {
+        _lock.lock();
+        try {
+            if (_autoBatch != null && c.CanBatch() && ReserveBatchSpace(c.getBodyLength())) {
+                _autoBatch.AddBody(c);
+            } else {
+                FlushBatch();
+                Write(c);
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // sends all parts of an oversized command at once and merges the replies when the last one arrives
+    private CompletableFuture<Command> SendSplitAsync(final Command c) throws ArgumentException {
+        final List<Command> parts = c.Split();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[parts.size()];
+        for (int i = 0; i < futures.length; i++)
+            futures[i] = SendCommandAsync(parts.get(i));
+
+        return CompletableFuture.allOf(futures).thenApply(new Function<Void, Command>() {
+            @Override
+            public Command apply(Void ignored) {
+                MergeReplies(c, parts);
+                return c;
+            }
+        });
+    }
+
+    // sends each part of an oversized command in turn and merges the replies back into the original command
+    private void SendSplit(Command c) throws ArgumentException {
+        List<Command> parts = c.Split();
+        for (Command part : parts)
+            SendCommand(part);
+        MergeReplies(c, parts);
+    }
+
+    private static void MergeReplies(Command c, List<Command> parts) {
+        if (!Command.ExpectsReply(c.CommandType))
+            return;
+
+        boolean complete = true;
+        byte[] data = new byte[c.getGlobalSize()];
+
+        for (Command part : parts) {
+            Response r = part.Response;
+            if (!r.hasData()) {
+                complete = false;
+                continue;
+            }
+
+            r.CopyTo(0, data, part.GlobalBase, Math.min(r.getLength(), data.length - part.GlobalBase));
+            c.FillReplyValues(r, part.GlobalBase);
+            if (c.Response.ReplyType != Enums.ReplyType.DirectReplyError)
+                c.Response.ReplyType = r.ReplyType;
+        }
+
+        if (complete)
+            c.Response.SetData(data, 0, data.length);
+    }
+
+    /// <summary>
+    /// Send a pre-encoded command template with its current slot values.
+    /// </summary>
+    /// <param name="t">The template to send</param>
+    public void SendTemplate(CommandTemplate t) {
+        _lock.lock();
+        try {
+            if (_autoBatch != null && ReserveBatchSpace(t.getLength() - Command.DirectHeaderSize)) {
+                t.AddBodyTo(_autoBatch);
+                return;
+            }
+
+            FlushBatch();
+            t.SetSequence(_responses.NextSequence());
+            // copied, as the caller may fill in the template again before the frame is written
+            Outgoing o = AcquireOutgoing(t.getLength());
+            o.Buffer.put(t.getFrame(), 0, t.getLength());
+            o.Length = t.getLength();
+            o.Latest = t.isLatestWins();
+            o.Ports = t.getPorts();
+            _outgoing.add(o);
+        } finally {
+            _lock.unlock();
+        }
+        WriteQueued();
+    }
+
+    // encodes the command and queues the frame for WriteQueued; must be called while holding _lock
+    private void Write(Command c) {
+        Outgoing o = AcquireOutgoing(c.getLength());
+        if (Command.ExpectsReply(c.CommandType)) {
+            c.SetSequence(_responses.Register(c.Response));
+            // before the frame goes out, so the reply cannot arrive ahead of its deadline
+            _responses.StartDeadline(c.Response, c.Response.getRemainingTimeout(c.Timeout));
+            o.Response = c.Response;
+            o.Sequence = c.Response.Sequence;
+        } else {
+            c.SetSequence(_responses.NextSequence());
+        }
+
+        o.Length = c.ToBytes(o.Buffer);
+        o.Latest = false;
+        _outgoing.add(o);
+    }
+
+    // writes the queued frames to the transport in order.  _lock is only held to take a frame off the queue, never
+    // while writing, so a transport that blocks for room cannot hold up the thread that receives replies when that
+    // thread takes _lock to send commands waiting for the window.  One thread writes at a time: a caller that finds
+    // another thread writing leaves its frames to it, and that thread looks at the queue again before it stops.  A
+    // failed frame that expects a reply fails its response; any other failure is thrown to the thread that was writing.
+    private void WriteQueued() {
+        RuntimeException failure = null;
+        // a caller still holding _lock, or already writing further up the stack, leaves the frames to the outer call
+        while (!_lock.isHeldByCurrentThread() && !_writeLock.isHeldByCurrentThread() && _writeLock.tryLock()) {
+            try {
+                Outgoing o;
+                while ((o = PollOutgoing()) != null) {
+                    try {
+                        if (o.Latest)
+                            _comm.WriteLatest(o.Ports, o.Buffer.array(), 0, o.Length);
+                        else
+                            _comm.Write(o.Buffer.array(), 0, o.Length);
+                    } catch (RuntimeException e) {
+                        Response r = o.Response;
+                        if (r == null) {
+                            if (failure == null)
+                                failure = e;
+                        } else if (r.Sequence == o.Sequence && _responses.Unregister(r)) {
+                            // otherwise it timed out first, and may have been sent again since
+                            r.Fail(e);
+                        }
+                    } finally {
+                        ReleaseOutgoing(o);
+                    }
+                }
+            } finally {
+                _writeLock.unlock();
+            }
+            if (!HasOutgoing())
+                break;
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private Outgoing PollOutgoing() {
+        _lock.lock();
+        try {
+            return _outgoing.poll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private boolean HasOutgoing() {
+        _lock.lock();
+        try {
+            return !_outgoing.isEmpty();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // an entry for a frame of the given length, from the pool if one is free; must be called while holding _lock
+    private Outgoing AcquireOutgoing(int length) {
+        Outgoing o = _outgoingPool.poll();
+        if (o == null)
+            o = new Outgoing();
+        if (o.Buffer.capacity() < length)
+            o.Buffer = ByteBuffer.allocate(length);
+        o.Buffer.clear();
+        return o;
+    }
+
+    private void ReleaseOutgoing(Outgoing o) {
+        o.Response = null;
+        // entries grown for an oversized frame are dropped
+        if (o.Buffer.capacity() == Command.MaxFrameSize)
+            _outgoingPool.offer(o);
+    }
+
+    // a frame encoded while holding _lock, waiting for WriteQueued
+    private static final class Outgoing {
+        ByteBuffer Buffer = ByteBuffer.allocate(Command.MaxFrameSize);
+        int Length;
+        // written with WriteLatest for these ports
+        boolean Latest;
+        int Ports;
+        // the response waiting for the frame's reply and the sequence number it was sent with, or null
+        Response Response;
+        short Sequence;
+    }
+
+    // makes room for bodyLength more bytes in the pending batch, sending it first if it is too full;
+    // returns false if the command would not fit even in an empty batch
+    private boolean ReserveBatchSpace(int bodyLength) {
+        if (Command.DirectHeaderSize + bodyLength > Command.MaxFrameSize)
+            return false;
+
+        if (_autoBatch.getLength() + bodyLength > Command.MaxFrameSize)
+            FlushBatch();
+
+        if (_autoBatchWindow > 0 && !_autoBatchFlushScheduled) {
+            _autoBatchFlushScheduled = true;
+            _autoBatchTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    Flush();
+                }
+            }, _autoBatchWindow);
+        }
+        return true;
+    }
+
+    private void FlushBatch() {
+        if (_autoBatch == null)
+            return;
+
+        _autoBatchFlushScheduled = false;
+        if (_autoBatch.getBodyLength() == 0)
+            return;
+
+        Write(_autoBatch);
+        try {
+            _autoBatch.Initialize(Enums.CommandType.DirectNoReply);
+        } catch (ArgumentException e) {
+            // cannot happen: a no-reply command without global or local buffers is always valid
+        }
+    }
+
+    private void PollSensors() throws ArgumentException {
+        boolean changed = false;
+
+        if (_poll == null || PollModesChanged())
+            BuildPoll();
+
+        // the handles are decoded before SendCommand returns, so the reply buffer can go back to the pool straight away
+        try {
+            SendCommand(_poll);
+        } finally {
+            ReleaseBuffer(_poll.Response.DetachBuffer());
+        }
+        if (!_pollButtons[PollButtons.length - 1].isReady())
+            return;
+
+        for (Enums.InputPort i : Inputs) {
+            Port p = Ports.get(i);
+
+            Enums.DeviceType type = _pollTypeModes[p.Index].getType();
+            float siValue = _pollSIValues[p.Index].getValue();
+            int rawValue = _pollRawValues[p.Index].getValue();
+            byte percentValue = _pollPercentValues[p.Index].getValue();
+
+            if (p.getType() != type || Math.abs(p.getSIValue() - siValue) > 0.01f ||
+                    p.getRawValue() != rawValue || p.getPercentValue() != percentValue)
+                changed = true;
+
+            p.setType(type);
+
+            p.setSIValue(siValue);
+            p.setRawValue(rawValue);
+            p.setPercentValue(percentValue);
+        }
+
+        boolean back = _pollButtons[0].getBooleanValue();
+        boolean left = _pollButtons[1].getBooleanValue();
+        boolean up = _pollButtons[2].getBooleanValue();
+        boolean right = _pollButtons[3].getBooleanValue();
+        boolean down = _pollButtons[4].getBooleanValue();
+        boolean enter = _pollButtons[5].getBooleanValue();
+
+        if (Buttons.Back != back ||
+                Buttons.Left != left ||
+                Buttons.Up != up ||
+                Buttons.Right != right ||
+                Buttons.Down != down ||
+                Buttons.Enter != enter)
+            changed = true;
+
+        Buttons.Back = back;
+        Buttons.Left = left;
+        Buttons.Up = up;
+        Buttons.Right = right;
+        Buttons.Down = down;
+        Buttons.Enter = enter;
+
+        if (changed || _alwaysSendEvents)
+            OnBrickChanged(new BrickChangedEventArgs(this.Ports, this.Buttons));
+    }
+
+    private boolean PollModesChanged() {
+        for (Enums.InputPort i : Inputs) {
+            Port p = Ports.get(i);
+            if (_pollModes[p.Index] != p.getMode())
+                return true;
+        }
+        return false;
+    }
+
+    // encodes the poll for the current port modes, keeping the handles its reply is decoded into
+    private void BuildPoll() throws ArgumentException {
+        if (_poll == null)
+            _poll = new Command(Enums.CommandType.DirectReply);
+        else
+            _poll.Initialize(Enums.CommandType.DirectReply);
+
+        for (Enums.InputPort i : Inputs) {
+            Port p = Ports.get(i);
+
+            _pollModes[p.Index] = p.getMode();
+            _pollTypeModes[p.Index] = _poll.GetTypeMode(p.InputPort);
+            _pollSIValues[p.Index] = _poll.ReadySI(p.InputPort, p.getMode());
+            _pollRawValues[p.Index] = _poll.ReadyRaw(p.InputPort, p.getMode());
+            _pollPercentValues[p.Index] = _poll.ReadyPercent(p.InputPort, p.getMode());
+        }
+
+        for (int i = 0; i < PollButtons.length; i++)
+            _pollButtons[i] = _poll.IsBrickButtonPressed(PollButtons[i]);
+    }
+
+    public interface BrickChangedListener {
+        void OnBrickChanged(BrickChangedEventArgs eventArgs);
+    }
+
+    public void setBrickChangedListener(BrickChangedListener listener) {
+        this.brickChangeListener = listener;
+    }
+
+    private void OnBrickChanged(BrickChangedEventArgs e) {
+        if (brickChangeListener != null)
+            brickChangeListener.OnBrickChanged(e);
+    }
+
+    // a semaphore whose number of permits can be changed while permits are held
+    private static final class InFlightWindow extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        InFlightWindow(int size) {
+            super(size);
+            _size = size;
+        }
+
+        private final ReentrantLock _resizeLock = new ReentrantLock();
+        private volatile int _size;
+
+        void Resize(int size) {
+            _resizeLock.lock();
+            try {
+                if (size > _size)
+                    release(size - _size);
+                else if (size < _size)
+                    reducePermits(_size - size);
+                _size = size;
+            } finally {
+                _resizeLock.unlock();
+            }
+        }
+
+        int getSize() {
+            return _size;
+        }
+    }
+}
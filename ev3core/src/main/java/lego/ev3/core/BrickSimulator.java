@@ -0,0 +1,1573 @@
+package lego.ev3.core;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// <summary>
+/// An EV3 brick simulated in process, for testing and benchmarking without hardware.  Frames written to it are
+/// decoded and interpreted opcode by opcode using the parameter layouts in <see cref="Enums.Opcode"/> and
+/// <see cref="Enums.SystemOpcode"/>, against simulated motors, sensors, buttons, screen, LED, sound and file system.
+/// Replies carry the sequence number of their command and are delivered to the report receiver on the simulator's
+/// own thread, in the order the commands were written.
+/// </summary>
+/// <remarks>The simulation is functional rather than physical: motors turn at a rate proportional to their power or
+/// speed, sensors return whatever was last set with <see cref="SetSensor"/>, text is recorded rather than drawn and
+/// operations that wait on the real brick (OutputReady, InputReady) complete at once.</remarks>
+public final class BrickSimulator implements ICommunication {
+    /// <summary>
+    /// Width of the screen in pixels
+    /// </summary>
+    public static final int ScreenWidth = 178;
+    /// <summary>
+    /// Height of the screen in pixels
+    /// </summary>
+    public static final int ScreenHeight = 128;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // commands written but not yet executed; writers wait when this many are queued
+    private static final int QueueSize = 256;
+    // a large motor turns at roughly this many degrees per second at full power without load
+    private static final double DegreesPerSecondAtFull = 1000;
+    // file paths are relative to this directory on the brick, as on the real one
+    private static final String SystemDirectory = "/home/root/lms2012/sys/";
+    private static final int MaxHandles = 16;
+    // system reply header: sequence (2), reply type, opcode, status
+    private static final int SystemReplyHeader = 5;
+    // direct reply header: sequence (2), reply type
+    private static final int DirectReplyHeader = 3;
+    // a long press is a press held at least this long
+    private static final long LongPressNanos = TimeUnit.SECONDS.toNanos(1);
+    private static final int InputPorts = 4;
+    private static final int OutputPorts = 4;
+    // first input port number that reads an output port's tacho (A = 0x10)
+    private static final int MotorInputBase = 0x10;
+
+    // lms2012 connection types reported by InputDevice_GetConnection
+    private static final int ConnectionNxtColor = 118;
+    private static final int ConnectionNxtDumb = 119;
+    private static final int ConnectionNxtIic = 120;
+    private static final int ConnectionInputUart = 122;
+    private static final int ConnectionOutputTacho = 125;
+    private static final int ConnectionNone = 126;
+
+    // a command waiting to be executed
+    private static final class Frame {
+        byte[] Data = new byte[Command.MaxFrameSize];
+        int Length;
+        long Due;
+    }
+
+    private static final class Motor {
+        Enums.DeviceType Type = Enums.DeviceType.LMotor;
+        int Power;
+        int Speed;
+        boolean Regulated;
+        boolean Running;
+        int Polarity = 1;
+        // share of the set power or speed this motor turns at, for synchronised pairs
+        double Ratio = 1;
+        // degrees and time left before the motor stops by itself
+        double StepsLeft = Double.POSITIVE_INFINITY;
+        long StopAt = Long.MAX_VALUE;
+        // OutputGetCount/ClearCount and OutputRead/Reset keep separate counters, as on the brick
+        double Count;
+        double Position;
+
+        double Rate() {
+            if (!Running)
+                return 0;
+            return (Regulated ? Speed : Power) * Ratio * Polarity * DegreesPerSecondAtFull / 100;
+        }
+
+        int Percent() {
+            return (int)Math.round(Rate() * 100 / DegreesPerSecondAtFull);
+        }
+
+        void Stop() {
+            Running = false;
+            Ratio = 1;
+            StepsLeft = Double.POSITIVE_INFINITY;
+            StopAt = Long.MAX_VALUE;
+        }
+    }
+
+    private static final class Sensor {
+        Enums.DeviceType Type = Enums.DeviceType.Empty;
+        int Mode;
+        float Value;
+        float Changes;
+        float Bumps;
+    }
+
+    // an open file transfer or listing
+    private static final class Handle {
+        String Path;
+        byte[] Data;
+        int Position;
+    }
+
+    // a parameter that could not be decoded or an opcode the simulator does not know; the command fails
+    private static final class BadCommand extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BadCommand() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final BadCommand Bad = new BadCommand();
+
+    private volatile IReportReceiver _receiver;
+    private volatile long _latencyNanos;
+    private volatile Thread _thread;
+    private volatile boolean _running;
+
+    // writers' side: frames are split from the written bytes and queued
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final FrameDecoder _decoder = new FrameDecoder();
+    private final ArrayBlockingQueue<Frame> _pending = new ArrayBlockingQueue<Frame>(QueueSize);
+    private final ArrayBlockingQueue<Frame> _free = new ArrayBlockingQueue<Frame>(QueueSize);
+    private Frame _filling;
+    private final IReportReceiver _frameReceiver = new IReportReceiver() {
+        @Override
+        public void ReceiveReport(byte[] data) {
+            System.arraycopy(data, 0, AcquireBuffer(data.length), 0, data.length);
+            ReceiveReport(_filling.Data, data.length);
+        }
+
+        @Override
+        public void ReceiveReport(byte[] buffer, int length) {
+            Frame f = _filling;
+            _filling = null;
+            f.Length = length;
+            f.Due = System.nanoTime() + _latencyNanos;
+            _framesReceived.incrementAndGet();
+            while (true) {
+                try {
+                    _pending.put(f);
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public byte[] AcquireBuffer(int length) {
+            Frame f = _free.poll();
+            if (f == null)
+                f = new Frame();
+            if (f.Data.length < length)
+                f.Data = new byte[length];
+            _filling = f;
+            return f.Data;
+        }
+    };
+
+    // simulated state, guarded by _stateLock
+    private final ReentrantLock _stateLock = new ReentrantLock();
+    private final Motor[] _motors = new Motor[OutputPorts];
+    private final Sensor[] _sensors = new Sensor[InputPorts];
+    private final boolean[] _buttons = new boolean[Enums.BrickButton.values().length];
+    private final long[] _pressedAt = new long[_buttons.length];
+    private final boolean[] _shortPressed = new boolean[_buttons.length];
+    private final boolean[] _longPressed = new boolean[_buttons.length];
+    private final byte[] _drawing = new byte[ScreenWidth * ScreenHeight];
+    private final byte[] _screen = new byte[ScreenWidth * ScreenHeight];
+    private final Map<Integer, byte[]> _storedScreens = new HashMap<Integer, byte[]>();
+    private final TreeMap<String, byte[]> _files = new TreeMap<String, byte[]>();
+    private final TreeSet<String> _directories = new TreeSet<String>();
+    private final Handle[] _handles = new Handle[MaxHandles];
+    private final Map<String, byte[]> _mailboxes = new HashMap<String, byte[]>();
+    private long _lastAdvance = System.nanoTime();
+    private Enums.LedPattern _led = Enums.LedPattern.Green;
+    private String _lastText;
+    private boolean _topLine = true;
+    private int _font;
+    private int _toneFrequency;
+    private long _soundUntil;
+    private String _soundFile;
+    private String _brickName = "EV3";
+
+    // interpreter state, only touched by the simulator thread
+    private final byte[] _reply = new byte[Command.MaxFrameSize + SystemReplyHeader];
+    private final byte[] _locals = new byte[64];
+    private int _globalSize;
+    private int _localSize;
+    private byte[] _code;
+    private int _pc;
+    private int _codeEnd;
+    private final int[] _args = new int[8];
+    private final String[] _strings = new String[8];
+
+    private final AtomicLong _framesReceived = new AtomicLong();
+    private final AtomicLong _repliesSent = new AtomicLong();
+    private final AtomicLong _failedCommands = new AtomicLong();
+
+    public BrickSimulator() {
+        for (int i = 0; i < OutputPorts; i++)
+            _motors[i] = new Motor();
+        for (int i = 0; i < InputPorts; i++)
+            _sensors[i] = new Sensor();
+        for (String dir : new String[] { "/", "/home/", "/home/root/", "/home/root/lms2012/", SystemDirectory,
+                SystemDirectory + "apps/", SystemDirectory + "prjs/", SystemDirectory + "tools/" })
+            _directories.add(dir);
+        for (int i = 0; i < QueueSize / 4; i++)
+            _free.add(new Frame());
+    }
+
+    /// <summary>
+    /// Delay each command by a fixed time before it is executed, to stand in for the link to a real brick
+    /// </summary>
+    /// <param name="millis">Delay in milliseconds; 0 executes commands as soon as possible</param>
+    public void setLatency(long millis) {
+        _latencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public void SetReportReceiver(IReportReceiver receiver) {
+        _receiver = receiver;
+    }
+
+    /// <summary>
+    /// Start executing commands
+    /// </summary>
+    @Override
+    public void Connect() {
+        if (_thread != null)
+            return;
+
+        _running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Run();
+            }
+        }, "EV3 simulator");
+        thread.setDaemon(true);
+        _thread = thread;
+        thread.start();
+    }
+
+    /// <summary>
+    /// Stop executing commands.  Commands still queued are dropped.
+    /// </summary>
+    @Override
+    public void Disconnect() {
+        Thread thread = _thread;
+        if (thread == null)
+            return;
+
+        _running = false;
+        _thread = null;
+        thread.interrupt();
+    }
+
+    @Override
+    public void Write(byte[] data) {
+        Write(data, 0, data.length);
+    }
+
+    @Override
+    public void Write(byte[] data, int offset, int length) {
+        if (_thread == null)
+            return;
+
+        _writeLock.lock();
+        try {
+            _decoder.Decode(data, offset, length, _frameReceiver);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Connect a device to an input port, or change the value it reads.  Changes and, for touch sensors, bumps are
+    /// counted as on the brick.
+    /// </summary>
+    /// <param name="port">Input port 1 to 4</param>
+    /// <param name="type">The device, or <see cref="Enums.DeviceType.Empty"/> to disconnect it</param>
+    /// <param name="value">The value in SI units, e.g. 1 for a pressed touch sensor or a distance in cm</param>
+    public void SetSensor(Enums.InputPort port, Enums.DeviceType type, float value) throws ArgumentException {
+        if (port.getValue() >= InputPorts)
+            throw new ArgumentException("Sensors can only be connected to input ports 1 to 4", "port");
+
+        _stateLock.lock();
+        try {
+            Sensor s = _sensors[port.getValue()];
+            if (s.Type != type) {
+                s.Type = type;
+                s.Mode = 0;
+            } else if (s.Value != value) {
+                s.Changes++;
+                if ((type == Enums.DeviceType.Touch || type == Enums.DeviceType.NxtTouch) && s.Value != 0 && value == 0)
+                    s.Bumps++;
+            }
+            s.Value = value;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Press or release a button on the face of the brick
+    /// </summary>
+    public void SetButton(Enums.BrickButton button, boolean pressed) {
+        _stateLock.lock();
+        try {
+            int b = button.ordinal();
+            long now = System.nanoTime();
+            if (pressed && !_buttons[b]) {
+                _pressedAt[b] = now;
+            } else if (!pressed && _buttons[b]) {
+                if (now - _pressedAt[b] >= LongPressNanos)
+                    _longPressed[b] = true;
+                else
+                    _shortPressed[b] = true;
+            }
+            _buttons[b] = pressed;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Connect a motor or other device to an output port
+    /// </summary>
+    /// <param name="port">A single output port</param>
+    /// <param name="type">Usually <see cref="Enums.DeviceType.LMotor"/> or <see cref="Enums.DeviceType.MMotor"/></param>
+    public void SetMotorType(OutputPort port, Enums.DeviceType type) throws ArgumentException {
+        _stateLock.lock();
+        try {
+            _motors[MotorIndex(port)].Type = type;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Whether the motor on a port is turning
+    /// </summary>
+    /// <param name="port">A single output port</param>
+    public boolean isMotorRunning(OutputPort port) throws ArgumentException {
+        _stateLock.lock();
+        try {
+            Advance();
+            return _motors[MotorIndex(port)].Running;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The speed the motor on a port is turning at, as a percentage of full speed (-100 to 100)
+    /// </summary>
+    /// <param name="port">A single output port</param>
+    public int getMotorSpeed(OutputPort port) throws ArgumentException {
+        _stateLock.lock();
+        try {
+            Advance();
+            return _motors[MotorIndex(port)].Percent();
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The tacho count of the motor on a port in degrees
+    /// </summary>
+    /// <param name="port">A single output port</param>
+    public int getTachoCount(OutputPort port) throws ArgumentException {
+        _stateLock.lock();
+        try {
+            Advance();
+            return (int)_motors[MotorIndex(port)].Count;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The pattern the LED is showing
+    /// </summary>
+    public Enums.LedPattern getLedPattern() {
+        _stateLock.lock();
+        try {
+            return _led;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Whether a pixel on the screen is set, as of the last UIDraw_Update
+    /// </summary>
+    public boolean getPixel(int x, int y) {
+        if (x < 0 || x >= ScreenWidth || y < 0 || y >= ScreenHeight)
+            return false;
+
+        _stateLock.lock();
+        try {
+            return _screen[y * ScreenWidth + x] != 0;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The text most recently drawn with UIDraw_Text, or null
+    /// </summary>
+    public String getLastText() {
+        _stateLock.lock();
+        try {
+            return _lastText;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Frequency of the tone playing, or 0 if none is
+    /// </summary>
+    public int getToneFrequency() {
+        _stateLock.lock();
+        try {
+            return System.nanoTime() - _soundUntil < 0 ? _toneFrequency : 0;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    public String getBrickName() {
+        _stateLock.lock();
+        try {
+            return _brickName;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Contents of a file on the brick
+    /// </summary>
+    /// <param name="path">Path as passed to the brick, i.e. relative to lms2012/sys unless it starts with /</param>
+    /// <returns>A copy of the contents, or null if there is no such file</returns>
+    public byte[] getFile(String path) {
+        _stateLock.lock();
+        try {
+            byte[] data = _files.get(Resolve(path));
+            return data != null ? data.clone() : null;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Put a file on the brick, creating its directory if needed
+    /// </summary>
+    /// <param name="path">Path as passed to the brick, i.e. relative to lms2012/sys unless it starts with /</param>
+    /// <param name="data">Contents of the file</param>
+    public void PutFile(String path, byte[] data) {
+        _stateLock.lock();
+        try {
+            StoreFile(Resolve(path), data.clone());
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The last message written to a mailbox with WriteMailbox, or null
+    /// </summary>
+    public byte[] getMailbox(String name) {
+        _stateLock.lock();
+        try {
+            byte[] data = _mailboxes.get(name);
+            return data != null ? data.clone() : null;
+        } finally {
+            _stateLock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Commands received so far
+    /// </summary>
+    public long getFramesReceived() {
+        return _framesReceived.get();
+    }
+
+    /// <summary>
+    /// Replies sent so far
+    /// </summary>
+    public long getRepliesSent() {
+        return _repliesSent.get();
+    }
+
+    /// <summary>
+    /// Commands that could not be executed, e.g. because they held an unknown opcode
+    /// </summary>
+    public long getFailedCommands() {
+        return _failedCommands.get();
+    }
+
+    private void Run() {
+        while (_running) {
+            Frame f;
+            try {
+                f = _pending.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            long wait;
+            while ((wait = f.Due - System.nanoTime()) > 0 && _running)
+                LockSupport.parkNanos(this, wait);
+            if (!_running)
+                return;
+
+            int length;
+            _stateLock.lock();
+            try {
+                length = Execute(f.Data, f.Length);
+            } finally {
+                _stateLock.unlock();
+            }
+            _free.offer(f);
+
+            IReportReceiver receiver = _receiver;
+            if (length > 0 && receiver != null) {
+                byte[] report = receiver.AcquireBuffer(length);
+                System.arraycopy(_reply, 0, report, 0, length);
+                _repliesSent.incrementAndGet();
+                receiver.ReceiveReport(report, length);
+            }
+        }
+    }
+
+    // runs one command and builds its reply in _reply; returns the length of the reply, or 0 if none is due
+    private int Execute(byte[] frame, int length) {
+        if (length < 3)
+            return 0;
+
+        Advance();
+        int type = frame[2] & 0xff;
+        _reply[0] = frame[0];
+        _reply[1] = frame[1];
+
+        if (type == Enums.CommandType.DirectReply.getValue() || type == Enums.CommandType.DirectNoReply.getValue())
+            return ExecuteDirect(frame, length, type == Enums.CommandType.DirectReply.getValue());
+        if (type == Enums.CommandType.SystemReply.getValue() || type == Enums.CommandType.SystemNoReply.getValue())
+            return ExecuteSystem(frame, length, type == Enums.CommandType.SystemReply.getValue());
+
+        _failedCommands.incrementAndGet();
+        return 0;
+    }
+
+    // ---- direct commands ----
+
+    private int ExecuteDirect(byte[] frame, int length, boolean reply) {
+        if (length < 5) {
+            _failedCommands.incrementAndGet();
+            return 0;
+        }
+
+        _globalSize = (frame[3] & 0xff) | (frame[4] & 0x03) << 8;
+        _localSize = (frame[4] & 0xff) >> 2;
+        Arrays.fill(_reply, DirectReplyHeader, DirectReplyHeader + _globalSize, (byte)0);
+        Arrays.fill(_locals, (byte)0);
+        _code = frame;
+        _pc = 5;
+        _codeEnd = length;
+
+        boolean ok = true;
+        try {
+            while (_pc < _codeEnd)
+                ExecuteOpcode();
+        } catch (BadCommand e) {
+            ok = false;
+            _failedCommands.incrementAndGet();
+        }
+
+        _reply[2] = (byte)(ok ? Enums.ReplyType.DirectReply : Enums.ReplyType.DirectReplyError).getValue();
+        return reply ? DirectReplyHeader + _globalSize : 0;
+    }
+
+    private void ExecuteOpcode() {
+        int primary = ReadByte();
+        Enums.Opcode op = Enums.Opcode.fromBytes(primary, Enums.Opcode.hasSubcode(primary) ? ReadByte() : -1);
+        if (op == null)
+            throw Bad;
+
+        Enums.ParameterType[] types = op.getParameters();
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case Data8:
+                case Data16:
+                case Data32:
+                    _args[i] = ReadValue(types[i].getSize());
+                    break;
+                case CString:
+                    _strings[i] = ReadString();
+                    break;
+                default:
+                    _args[i] = ReadTarget();
+                    break;
+            }
+        }
+
+        switch (op) {
+            case Nop:
+            case KeepAlive:
+            case Tst:
+            case UIDraw_Icon:
+            case UIDraw_BmpFile:
+            case Sound_Service:
+            case SoundReady:
+            case InputDevice_StopAll:
+            case InputReady:
+            case OutputReady:
+                break;
+
+            case UIRead_GetVBatt: PutFloat(_args[0], 7.5f); break;
+            case UIRead_GetIBatt: PutFloat(_args[0], 0.15f); break;
+            case UIRead_GetTBatt: PutFloat(_args[0], 0.5f); break;
+            case UIRead_GetIMotor: PutFloat(_args[0], RunningMotors() * 0.1f); break;
+            case UIRead_GetLBatt: Put8(_args[0], 80); break;
+            case UIRead_GetOSVersion: PutString(_args[1], "Linux 2.6.33-rc4", _args[0]); break;
+            case UIRead_GetHardwareVersion: PutString(_args[1], "V0.60", _args[0]); break;
+            case UIRead_GetFirmware: PutString(_args[1], "V1.09H", _args[0]); break;
+            case UIRead_GetFirmwareBuild: PutString(_args[1], "1217", _args[0]); break;
+            case UIRead_GetOSBuild: PutString(_args[1], "1212", _args[0]); break;
+
+            case UIWrite_LED:
+                Enums.LedPattern[] patterns = Enums.LedPattern.values();
+                if (_args[0] >= 0 && _args[0] < patterns.length)
+                    _led = patterns[_args[0]];
+                break;
+
+            case UIButton_ShortPress: Put8(_args[1], TakePress(_shortPressed, _args[0])); break;
+            case UIButton_LongPress: Put8(_args[1], TakePress(_longPressed, _args[0])); break;
+            case UIButton_Pressed: Put8(_args[1], IsPressed(_args[0])); break;
+            case UIButton_Flush:
+                Arrays.fill(_shortPressed, false);
+                Arrays.fill(_longPressed, false);
+                break;
+
+            case UIDraw_Update: System.arraycopy(_drawing, 0, _screen, 0, _screen.length); break;
+            case UIDraw_Clean: Arrays.fill(_drawing, (byte)0); break;
+            case UIDraw_Pixel: SetPixel(_args[1], _args[2], _args[0]); break;
+            case UIDraw_Line: DrawLine(_args[0], _args[1], _args[2], _args[3], _args[4], 1, 0); break;
+            case UIDraw_DotLine: DrawLine(_args[0], _args[1], _args[2], _args[3], _args[4], _args[5], _args[6]); break;
+            case UIDraw_Circle: DrawCircle(_args[0], _args[1], _args[2], _args[3], false); break;
+            case UIDraw_FillCircle: DrawCircle(_args[0], _args[1], _args[2], _args[3], true); break;
+            case UIDraw_Rect: DrawRect(_args[0], _args[1], _args[2], _args[3], _args[4], false); break;
+            case UIDraw_FillRect: DrawRect(_args[0], _args[1], _args[2], _args[3], _args[4], true); break;
+            case UIDraw_InverseRect: DrawRect(-1, _args[0], _args[1], _args[2], _args[3], true); break;
+            case UIDraw_FillWindow:
+                int rows = _args[2] == 0 ? ScreenHeight : _args[2];
+                DrawRect(_args[0], 0, _args[1], ScreenWidth, rows, true);
+                break;
+            case UIDraw_Text: _lastText = _strings[3]; break;
+            case UIDraw_SelectFont: _font = _args[0]; break;
+            case UIDraw_Topline: _topLine = _args[0] != 0; break;
+            case UIDraw_Store: _storedScreens.put(_args[0], _drawing.clone()); break;
+            case UIDraw_Restore:
+                byte[] stored = _storedScreens.get(_args[0]);
+                if (stored != null)
+                    System.arraycopy(stored, 0, _drawing, 0, _drawing.length);
+                break;
+
+            case Sound_Break: _soundUntil = System.nanoTime(); break;
+            case Sound_Tone:
+                _toneFrequency = _args[1];
+                _soundUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_args[2] & 0xffff);
+                break;
+            case Sound_Play:
+            case Sound_Repeat:
+                _soundFile = _strings[1];
+                _toneFrequency = 0;
+                _soundUntil = op == Enums.Opcode.Sound_Repeat ? System.nanoTime() + TimeUnit.DAYS.toNanos(1) : System.nanoTime();
+                break;
+            case SoundTest: Put8(_args[0], System.nanoTime() - _soundUntil < 0 ? 1 : 0); break;
+
+            case InputDevice_GetFormat:
+                Put8(_args[2], 1);                             // data sets
+                Put8(_args[3], 2);                             // format: float
+                Put8(_args[4], ModeNames(TypeOf(_args[1])).length);
+                Put8(_args[5], ModeNames(TypeOf(_args[1])).length);
+                break;
+            case InputDevice_GetTypeMode:
+                Put8(_args[2], TypeOf(_args[1]).getValue());
+                Put8(_args[3], ModeOf(_args[1]));
+                break;
+            case InputDevice_GetConnection: Put8(_args[2], ConnectionOf(_args[1])); break;
+            case InputDevice_ClearAll:
+                for (Sensor s : _sensors) {
+                    s.Changes = 0;
+                    s.Bumps = 0;
+                }
+                break;
+            case InputDevice_ClearChanges:
+                if (_args[1] >= 0 && _args[1] < InputPorts) {
+                    _sensors[_args[1]].Changes = 0;
+                    _sensors[_args[1]].Bumps = 0;
+                }
+                break;
+            case InputDevice_GetChanges: PutFloat(_args[2], IsSensor(_args[1]) ? _sensors[_args[1]].Changes : 0); break;
+            case InputDevice_GetBumps: PutFloat(_args[2], IsSensor(_args[1]) ? _sensors[_args[1]].Bumps : 0); break;
+            case InputDevice_GetDeviceName: PutString(_args[3], DeviceName(TypeOf(_args[1])), _args[2]); break;
+            case InputDevice_GetModeName:
+                String[] names = ModeNames(TypeOf(_args[1]));
+                PutString(_args[4], _args[2] >= 0 && _args[2] < names.length ? names[_args[2]] : "", _args[3]);
+                break;
+            case InputDevice_ReadyPct:
+                SelectMode(_args[1], _args[3]);
+                for (int i = 0; i < Math.max(_args[4], 1); i++)
+                    Put8(Offset(_args[5], i), Percent(_args[1]));
+                break;
+            case InputDevice_ReadyRaw:
+                SelectMode(_args[1], _args[3]);
+                for (int i = 0; i < Math.max(_args[4], 1); i++)
+                    Put32(Offset(_args[5], i * 4), Raw(_args[1]));
+                break;
+            case InputDevice_ReadySI:
+                SelectMode(_args[1], _args[3]);
+                for (int i = 0; i < Math.max(_args[4], 1); i++)
+                    PutFloat(Offset(_args[5], i * 4), SI(_args[1]));
+                break;
+
+            case InputRead:
+                SelectMode(_args[1], _args[3]);
+                Put8(_args[4], Percent(_args[1]));
+                break;
+            case InputTest: Put8(_args[2], 0); break;
+            case InputReadSI:
+                SelectMode(_args[1], _args[3]);
+                PutFloat(_args[4], SI(_args[1]));
+                break;
+            case InputReadExt:
+                SelectMode(_args[1], _args[3]);
+                // Format values are 0x10 to 0x12; the firmware also accepts 0 to 2
+                int format = _args[4] & 0x0f;
+                for (int i = 0; i < Math.max(_args[5], 1); i++) {
+                    if (format == 0)
+                        Put8(Offset(_args[6], i), Percent(_args[1]));
+                    else if (format == 1)
+                        Put32(Offset(_args[6], i * 4), Raw(_args[1]));
+                    else
+                        PutFloat(Offset(_args[6], i * 4), SI(_args[1]));
+                }
+                break;
+
+            case OutputGetType: Put8(_args[2], Motor(_args[1]).Type.getValue()); break;
+            case OutputSetType: Motor(_args[1]).Type = Enums.DeviceType.fromValue(_args[2]); break;
+            case OutputReset:
+                for (Motor m : Motors(_args[1]))
+                    m.Position = 0;
+                break;
+            case OutputClearCount:
+                for (Motor m : Motors(_args[1]))
+                    m.Count = 0;
+                break;
+            case OutputStop:
+                for (Motor m : Motors(_args[1]))
+                    m.Stop();
+                break;
+            case OutputPower:
+                for (Motor m : Motors(_args[1])) {
+                    m.Power = Clamp(_args[2]);
+                    m.Regulated = false;
+                }
+                break;
+            case OutputSpeed:
+                for (Motor m : Motors(_args[1])) {
+                    m.Speed = Clamp(_args[2]);
+                    m.Regulated = true;
+                }
+                break;
+            case OutputStart:
+                for (Motor m : Motors(_args[1])) {
+                    m.Stop();
+                    m.Running = true;
+                }
+                break;
+            case OutputPolarity:
+                for (Motor m : Motors(_args[1]))
+                    m.Polarity = _args[2] == 0 ? -m.Polarity : (_args[2] < 0 ? -1 : 1);
+                break;
+            case OutputStepPower:
+            case OutputStepSpeed:
+            case OutputTimePower:
+            case OutputTimeSpeed:
+                long total = (long)_args[3] + _args[4] + _args[5];
+                boolean regulated = op == Enums.Opcode.OutputStepSpeed || op == Enums.Opcode.OutputTimeSpeed;
+                boolean timed = op == Enums.Opcode.OutputTimePower || op == Enums.Opcode.OutputTimeSpeed;
+                for (Motor m : Motors(_args[1])) {
+                    m.Stop();
+                    if (regulated)
+                        m.Speed = Clamp(_args[2]);
+                    else
+                        m.Power = Clamp(_args[2]);
+                    m.Regulated = regulated;
+                    m.Running = true;
+                    if (total > 0 && timed)
+                        m.StopAt = _lastAdvance + TimeUnit.MILLISECONDS.toNanos(total);
+                    else if (total > 0)
+                        m.StepsLeft = total;
+                }
+                break;
+            case OutputStepSync:
+            case OutputTimeSync:
+                StartSync(_args[1], Clamp(_args[2]), (short)_args[3], _args[4], op == Enums.Opcode.OutputTimeSync);
+                break;
+            case OutputRead:
+                Put8(_args[2], Motor(_args[1]).Percent());
+                Put32(_args[3], (int)Motor(_args[1]).Position);
+                break;
+            case OutputTest:
+                int busy = 0;
+                for (Motor m : Motors(_args[1]))
+                    busy |= m.Running ? 1 : 0;
+                Put8(_args[2], busy);
+                break;
+            case OutputGetCount: Put32(_args[2], (int)Motor(_args[1]).Count); break;
+            case OutputProgramStop:
+                for (Motor m : _motors)
+                    m.Stop();
+                break;
+
+            case ComGet_GetBrickName: PutString(_args[1], _brickName, _args[0]); break;
+            case ComSet_SetBrickName: _brickName = _strings[0]; break;
+
+            default:
+                throw Bad;
+        }
+    }
+
+    // ---- parameter decoding, see lms2012 bytecodes.h ----
+
+    private int ReadByte() {
+        if (_pc >= _codeEnd)
+            throw Bad;
+        return _code[_pc++] & 0xff;
+    }
+
+    // reads a little-endian signed value of 1, 2 or 4 bytes
+    private int ReadSigned(int size) {
+        switch (size) {
+            case 1: return (byte)ReadByte();
+            case 2: return (short)(ReadByte() | ReadByte() << 8);
+            case 4: return ReadByte() | ReadByte() << 8 | ReadByte() << 16 | ReadByte() << 24;
+            default: throw Bad;
+        }
+    }
+
+    // reads a little-endian variable index of 1, 2 or 4 bytes; indexes are unsigned, so GV0x80 is not negative
+    private int ReadIndex(int size) {
+        switch (size) {
+            case 1: return ReadByte();
+            case 2: return ReadByte() | ReadByte() << 8;
+            case 4: return ReadSigned(4);
+            default: throw Bad;
+        }
+    }
+
+    // sizes encoded in the low bits of a long format parameter
+    private static int LongSize(int b) {
+        switch (b & 0x07) {
+            case 1: return 1;
+            case 2: return 2;
+            case 3: return 4;
+            default: return 0;
+        }
+    }
+
+    // a data parameter: a constant, or the value of a variable of the given size
+    private int ReadValue(int size) {
+        int b = ReadByte();
+        if ((b & 0x80) == 0) {
+            if ((b & 0x40) == 0)
+                return (b & 0x20) != 0 ? (b & 0x3f) - 0x40 : b & 0x3f;
+            return Load((b & 0x20) != 0 ? b & 0x1f : ~(b & 0x1f), size);
+        }
+
+        if ((b & 0x40) == 0)
+            return ReadSigned(LongSize(b));
+        int index = ReadIndex(LongSize(b));
+        return Load((b & 0x20) != 0 ? index : ~index, size);
+    }
+
+    // a string parameter: a constant, or a variable holding the string
+    private String ReadString() {
+        int b = ReadByte();
+        if ((b & 0xc0) == 0x80 && LongSize(b) == 0) {
+            int start = _pc;
+            while (ReadByte() != 0) {
+            }
+            return new String(_code, start, _pc - 1 - start, UTF8);
+        }
+
+        _pc--;
+        int target = ReadTarget();
+        byte[] memory = Memory(target);
+        int start = Offset(target, 0, 0);
+        int end = start;
+        int limit = target >= 0 ? DirectReplyHeader + _globalSize : _localSize;
+        while (end < limit && memory[end] != 0)
+            end++;
+        return new String(memory, start, end - start, UTF8);
+    }
+
+    // a variable the opcode writes to: the global index, or the complement of the local index
+    private int ReadTarget() {
+        int b = ReadByte();
+        if ((b & 0x80) == 0) {
+            if ((b & 0x40) == 0)
+                throw Bad;
+            return (b & 0x20) != 0 ? b & 0x1f : ~(b & 0x1f);
+        }
+        if ((b & 0x40) == 0)
+            throw Bad;
+
+        int index = ReadIndex(LongSize(b));
+        if (index < 0)
+            throw Bad;
+        return (b & 0x20) != 0 ? index : ~index;
+    }
+
+    private byte[] Memory(int target) {
+        return target >= 0 ? _reply : _locals;
+    }
+
+    // position of size bytes at a variable in its memory array
+    private int Offset(int target, int extra, int size) {
+        int index = (target >= 0 ? target : ~target) + extra;
+        int limit = target >= 0 ? _globalSize : _localSize;
+        if (index < 0 || index + size > limit)
+            throw Bad;
+        return target >= 0 ? DirectReplyHeader + index : index;
+    }
+
+    // the variable extra bytes after another
+    private static int Offset(int target, int extra) {
+        return target >= 0 ? target + extra : ~(~target + extra);
+    }
+
+    private int Load(int target, int size) {
+        byte[] memory = Memory(target);
+        int i = Offset(target, 0, size);
+        switch (size) {
+            case 1: return memory[i];
+            case 2: return (short)((memory[i] & 0xff) | (memory[i + 1] & 0xff) << 8);
+            default: return (memory[i] & 0xff) | (memory[i + 1] & 0xff) << 8 | (memory[i + 2] & 0xff) << 16 | memory[i + 3] << 24;
+        }
+    }
+
+    private void Put8(int target, int value) {
+        Memory(target)[Offset(target, 0, 1)] = (byte)value;
+    }
+
+    private void Put32(int target, int value) {
+        byte[] memory = Memory(target);
+        int i = Offset(target, 0, 4);
+        memory[i] = (byte)value;
+        memory[i + 1] = (byte)(value >> 8);
+        memory[i + 2] = (byte)(value >> 16);
+        memory[i + 3] = (byte)(value >> 24);
+    }
+
+    private void PutFloat(int target, float value) {
+        Put32(target, Float.floatToIntBits(value));
+    }
+
+    // writes a null terminated string into a buffer of size bytes, truncating it to fit
+    private void PutString(int target, String value, int size) {
+        if (size <= 0)
+            return;
+
+        byte[] memory = Memory(target);
+        int i = Offset(target, 0, size);
+        byte[] bytes = value.getBytes(UTF8);
+        int n = Math.min(bytes.length, size - 1);
+        System.arraycopy(bytes, 0, memory, i, n);
+        Arrays.fill(memory, i + n, i + size, (byte)0);
+    }
+
+    // ---- inputs ----
+
+    private boolean IsSensor(int port) {
+        return port >= 0 && port < InputPorts;
+    }
+
+    private boolean IsMotorInput(int port) {
+        return port >= MotorInputBase && port < MotorInputBase + OutputPorts;
+    }
+
+    private Enums.DeviceType TypeOf(int port) {
+        if (IsSensor(port))
+            return _sensors[port].Type;
+        if (IsMotorInput(port))
+            return _motors[port - MotorInputBase].Type;
+        return Enums.DeviceType.Unknown;
+    }
+
+    private int ModeOf(int port) {
+        return IsSensor(port) ? _sensors[port].Mode : 0;
+    }
+
+    // mode -1 keeps the current mode
+    private void SelectMode(int port, int mode) {
+        if (IsSensor(port) && mode >= 0)
+            _sensors[port].Mode = mode;
+    }
+
+    private float SI(int port) {
+        if (IsSensor(port))
+            return _sensors[port].Type == Enums.DeviceType.Empty ? 0 : _sensors[port].Value;
+        if (IsMotorInput(port))
+            return (float)_motors[port - MotorInputBase].Count;
+        return 0;
+    }
+
+    private int Raw(int port) {
+        return Math.round(SI(port));
+    }
+
+    private int Percent(int port) {
+        if (IsMotorInput(port))
+            return _motors[port - MotorInputBase].Percent();
+        if (!IsSensor(port))
+            return 0;
+
+        Sensor s = _sensors[port];
+        if (s.Type == Enums.DeviceType.Touch || s.Type == Enums.DeviceType.NxtTouch)
+            return s.Value != 0 ? 100 : 0;
+        return Math.max(0, Math.min(100, Math.round(s.Value)));
+    }
+
+    private int ConnectionOf(int port) {
+        Enums.DeviceType type = TypeOf(port);
+        if (type == Enums.DeviceType.Empty || type == Enums.DeviceType.Unknown)
+            return ConnectionNone;
+        if (IsMotorInput(port))
+            return ConnectionOutputTacho;
+        switch (type) {
+            case NxtColor: return ConnectionNxtColor;
+            case NxtUltrasonic: return ConnectionNxtIic;
+            case NxtTouch:
+            case NxtLight:
+            case NxtSound:
+            case NxtTemperature:
+                return ConnectionNxtDumb;
+            default:
+                return ConnectionInputUart;
+        }
+    }
+
+    private static String DeviceName(Enums.DeviceType type) {
+        switch (type) {
+            case NxtTouch: return "NXT-TOUCH";
+            case NxtLight: return "NXT-LIGHT";
+            case NxtSound: return "NXT-SOUND";
+            case NxtColor: return "NXT-COL";
+            case NxtUltrasonic: return "NXT-US";
+            case NxtTemperature: return "NXT-TEMP";
+            case LMotor: return "L-MOTOR";
+            case MMotor: return "M-MOTOR";
+            case Touch: return "TOUCH";
+            case Color: return "COLOR";
+            case Ultrasonic: return "US";
+            case Gyroscope: return "GYRO";
+            case Infrared: return "IR";
+            case Empty: return "NONE";
+            default: return "UNKNOWN";
+        }
+    }
+
+    private static final String[] NoModes = new String[0];
+
+    private static String[] ModeNames(Enums.DeviceType type) {
+        switch (type) {
+            case NxtTouch:
+            case Touch: return new String[] { "TOUCH", "BUMPS" };
+            case NxtLight: return new String[] { "NXT-REFLECT", "NXT-AMBIENT" };
+            case NxtSound: return new String[] { "NXT-DB", "NXT-DBA" };
+            case NxtColor: return new String[] { "NXT-REFLECT", "NXT-AMBIENT", "NXT-COLOR", "NXT-GREEN", "NXT-BLUE", "NXT-RAW" };
+            case NxtUltrasonic: return new String[] { "NXT-US-CM", "NXT-US-IN" };
+            case NxtTemperature: return new String[] { "NXT-TEMP-C", "NXT-TEMP-F" };
+            case LMotor: return new String[] { "L-MOTOR-DEG", "L-MOTOR-ROT", "L-MOTOR-SPD" };
+            case MMotor: return new String[] { "M-MOTOR-DEG", "M-MOTOR-ROT", "M-MOTOR-SPD" };
+            case Color: return new String[] { "COL-REFLECT", "COL-AMBIENT", "COL-COLOR", "REF-RAW", "RGB-RAW" };
+            case Ultrasonic: return new String[] { "US-DIST-CM", "US-DIST-IN", "US-LISTEN" };
+            case Gyroscope: return new String[] { "GYRO-ANG", "GYRO-RATE", "GYRO-FAS", "GYRO-G&A" };
+            case Infrared: return new String[] { "IR-PROX", "IR-SEEK", "IR-REMOTE" };
+            default: return NoModes;
+        }
+    }
+
+    // ---- buttons ----
+
+    private int IsPressed(int button) {
+        if (button == Enums.BrickButton.Any.ordinal()) {
+            for (boolean pressed : _buttons) {
+                if (pressed)
+                    return 1;
+            }
+            return 0;
+        }
+        return button >= 0 && button < _buttons.length && _buttons[button] ? 1 : 0;
+    }
+
+    private int TakePress(boolean[] presses, int button) {
+        if (button < 0 || button >= presses.length)
+            return 0;
+        boolean pressed = presses[button];
+        presses[button] = false;
+        return pressed ? 1 : 0;
+    }
+
+    // ---- screen ----
+
+    // color 0 clears, 1 sets, -1 inverts
+    private void SetPixel(int x, int y, int color) {
+        if (x < 0 || x >= ScreenWidth || y < 0 || y >= ScreenHeight)
+            return;
+
+        int i = y * ScreenWidth + x;
+        _drawing[i] = (byte)(color < 0 ? _drawing[i] ^ 1 : color != 0 ? 1 : 0);
+    }
+
+    private void DrawLine(int color, int x0, int y0, int x1, int y1, int on, int off) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        int period = Math.max(on, 1) + Math.max(off, 0);
+        for (int n = 0; ; n++) {
+            if (n % period < Math.max(on, 1))
+                SetPixel(x0, y0, color);
+            if (x0 == x1 && y0 == y1)
+                return;
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y0 += sy;
+            }
+        }
+    }
+
+    private void DrawRect(int color, int x, int y, int width, int height, boolean filled) {
+        for (int j = y; j < y + height; j++) {
+            for (int i = x; i < x + width; i++) {
+                if (filled || j == y || j == y + height - 1 || i == x || i == x + width - 1)
+                    SetPixel(i, j, color);
+            }
+        }
+    }
+
+    private void DrawCircle(int color, int cx, int cy, int r, boolean filled) {
+        for (int y = -r; y <= r; y++) {
+            for (int x = -r; x <= r; x++) {
+                int d = x * x + y * y;
+                if (d <= r * r && (filled || d > (r - 1) * (r - 1)))
+                    SetPixel(cx + x, cy + y, color);
+            }
+        }
+    }
+
+    // ---- outputs ----
+
+    // moves the motors on to the current time, stopping those whose steps or time have run out
+    private void Advance() {
+        long now = System.nanoTime();
+        for (Motor m : _motors) {
+            if (!m.Running)
+                continue;
+
+            long end = m.StopAt - now < 0 ? m.StopAt : now;
+            double moved = m.Rate() * Math.max(end - _lastAdvance, 0) / 1e9;
+            boolean done = end != now;
+            if (Math.abs(moved) >= m.StepsLeft) {
+                moved = Math.signum(moved) * m.StepsLeft;
+                done = true;
+            } else if (m.StepsLeft != Double.POSITIVE_INFINITY) {
+                m.StepsLeft -= Math.abs(moved);
+            }
+
+            m.Count += moved;
+            m.Position += moved;
+            if (done)
+                m.Stop();
+        }
+        _lastAdvance = now;
+    }
+
+    // starts two motors together; a positive turn ratio slows the second, a negative one the first
+    private void StartSync(int ports, int speed, int turn, int limit, boolean timed) {
+        List<Motor> motors = Motors(ports);
+        for (int i = 0; i < motors.size(); i++) {
+            Motor m = motors.get(i);
+            m.Stop();
+            m.Speed = speed;
+            m.Regulated = true;
+            m.Running = true;
+            if (turn > 0 && i == motors.size() - 1)
+                m.Ratio = 1 - turn / 100.0;
+            else if (turn < 0 && i == 0)
+                m.Ratio = 1 + turn / 100.0;
+
+            if (limit > 0 && timed)
+                m.StopAt = _lastAdvance + TimeUnit.MILLISECONDS.toNanos(limit);
+            else if (limit > 0)
+                m.StepsLeft = limit * Math.abs(m.Ratio);
+        }
+    }
+
+    private int RunningMotors() {
+        int n = 0;
+        for (Motor m : _motors)
+            n += m.Running ? 1 : 0;
+        return n;
+    }
+
+    // the motor for a port number (0 to 3), as taken by OutputRead, OutputGetCount and the type opcodes
+    private Motor Motor(int port) {
+        if (port < 0 || port >= OutputPorts)
+            throw Bad;
+        return _motors[port];
+    }
+
+    // the motors in a port mask, in port order
+    private List<Motor> Motors(int mask) {
+        List<Motor> motors = new ArrayList<Motor>(OutputPorts);
+        for (int i = 0; i < OutputPorts; i++) {
+            if ((mask & (1 << i)) != 0)
+                motors.add(_motors[i]);
+        }
+        return motors;
+    }
+
+    private static int MotorIndex(OutputPort port) throws ArgumentException {
+        int mask = port.getValue();
+        if (mask == 0 || (mask & (mask - 1)) != 0 || mask > 0x08)
+            throw new ArgumentException("A single output port is required", "port");
+        return Integer.numberOfTrailingZeros(mask);
+    }
+
+    private static int Clamp(int value) {
+        return Math.max(-100, Math.min(100, value));
+    }
+
+    // ---- system commands ----
+
+    private int ExecuteSystem(byte[] frame, int length, boolean reply) {
+        if (length < 4) {
+            _failedCommands.incrementAndGet();
+            return 0;
+        }
+
+        Enums.SystemOpcode op = Enums.SystemOpcode.fromValue(frame[3]);
+        _code = frame;
+        _pc = 4;
+        _codeEnd = length;
+        _reply[3] = frame[3];
+
+        int end = SystemReplyHeader;
+        Enums.SystemReplyStatus status;
+        try {
+            Enums.ParameterType[] types = op.getParameters();
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Enums.ParameterType.CString)
+                    _strings[i] = ReadRawString();
+                else if (types[i] != Enums.ParameterType.Bytes)
+                    _args[i] = ReadRaw(types[i].getSize());
+            }
+
+            status = Enums.SystemReplyStatus.Success;
+            Handle h;
+            switch (op) {
+                case BeginDownload:
+                    int handle = OpenHandle(Resolve(_strings[1]), new byte[Math.max(_args[0], 0)]);
+                    if (handle < 0) {
+                        status = Enums.SystemReplyStatus.NoHandlesAvailable;
+                        break;
+                    }
+                    _reply[end++] = (byte)handle;
+                    if (_args[0] <= 0)
+                        status = FinishDownload(handle);
+                    break;
+                case ContinueDownload:
+                    _reply[end++] = (byte)_args[0];
+                    h = GetHandle(_args[0]);
+                    if (h == null) {
+                        status = Enums.SystemReplyStatus.UnknownHandle;
+                        break;
+                    }
+                    int n = Math.min(_codeEnd - _pc, h.Data.length - h.Position);
+                    System.arraycopy(_code, _pc, h.Data, h.Position, n);
+                    h.Position += n;
+                    if (h.Position >= h.Data.length)
+                        status = FinishDownload(_args[0]);
+                    break;
+                case BeginUpload:
+                case BeginGetFile:
+                case ListFiles:
+                    String path = Resolve(_strings[1]);
+                    byte[] data = op == Enums.SystemOpcode.ListFiles ? Listing(path) : _files.get(path);
+                    if (data == null) {
+                        status = Enums.SystemReplyStatus.IllegalPath;
+                        break;
+                    }
+                    int opened = OpenHandle(path, data);
+                    if (opened < 0) {
+                        status = Enums.SystemReplyStatus.NoHandlesAvailable;
+                        break;
+                    }
+                    end = Put32Raw(end, data.length);
+                    _reply[end++] = (byte)opened;
+                    end = ReadChunk(opened, _args[0] & 0xffff, end);
+                    status = ChunkStatus(opened);
+                    break;
+                case ContinueUpload:
+                case ContinueGetFile:
+                case ContinueListFiles:
+                    h = GetHandle(_args[0]);
+                    if (h == null) {
+                        _reply[end++] = (byte)_args[0];
+                        status = Enums.SystemReplyStatus.UnknownHandle;
+                        break;
+                    }
+                    if (op == Enums.SystemOpcode.ContinueGetFile)
+                        end = Put32Raw(end, h.Data.length);
+                    _reply[end++] = (byte)_args[0];
+                    end = ReadChunk(_args[0], _args[1] & 0xffff, end);
+                    status = ChunkStatus(_args[0]);
+                    break;
+                case CloseFileHandle:
+                    _reply[end++] = (byte)_args[0];
+                    if (GetHandle(_args[0]) == null)
+                        status = Enums.SystemReplyStatus.UnknownHandle;
+                    else
+                        _handles[_args[0]] = null;
+                    break;
+                case CreateDirectory:
+                    String dir = Resolve(_strings[0]);
+                    if (!dir.endsWith("/"))
+                        dir += "/";
+                    if (_directories.contains(dir) || _files.containsKey(dir.substring(0, dir.length() - 1)))
+                        status = Enums.SystemReplyStatus.FileExists;
+                    else
+                        CreateDirectories(dir);
+                    break;
+                case DeleteFile:
+                    status = Delete(Resolve(_strings[0]));
+                    break;
+                case ListOpenHandles:
+                    int mask = 0;
+                    for (int i = 0; i < MaxHandles; i++)
+                        mask |= _handles[i] != null ? 1 << i : 0;
+                    _reply[end++] = (byte)mask;
+                    _reply[end++] = (byte)(mask >> 8);
+                    break;
+                case WriteMailbox:
+                    WriteMailbox();
+                    break;
+                case BluetoothPin:
+                    // the brick answers with the address and PIN it was sent
+                    int count = Math.min(_codeEnd - _pc, _reply.length - end);
+                    System.arraycopy(_code, _pc, _reply, end, count);
+                    end += count;
+                    break;
+                case EnterFirmwareUpdate:
+                    break;
+                default:
+                    status = Enums.SystemReplyStatus.UnknownError;
+                    break;
+            }
+        } catch (BadCommand e) {
+            _failedCommands.incrementAndGet();
+            end = SystemReplyHeader;
+            status = Enums.SystemReplyStatus.UnknownError;
+        }
+
+        boolean ok = status == Enums.SystemReplyStatus.Success || status == Enums.SystemReplyStatus.EndOfFile;
+        _reply[2] = (byte)(ok ? Enums.ReplyType.SystemReply : Enums.ReplyType.SystemReplyError).getValue();
+        _reply[4] = (byte)status.ordinal();
+        return reply ? end : 0;
+    }
+
+    private int ReadRaw(int size) {
+        return ReadSigned(size);
+    }
+
+    private String ReadRawString() {
+        int start = _pc;
+        while (ReadByte() != 0) {
+        }
+        return new String(_code, start, _pc - 1 - start, UTF8);
+    }
+
+    private int Put32Raw(int offset, int value) {
+        _reply[offset] = (byte)value;
+        _reply[offset + 1] = (byte)(value >> 8);
+        _reply[offset + 2] = (byte)(value >> 16);
+        _reply[offset + 3] = (byte)(value >> 24);
+        return offset + 4;
+    }
+
+    private int OpenHandle(String path, byte[] data) {
+        for (int i = 0; i < MaxHandles; i++) {
+            if (_handles[i] == null) {
+                Handle h = new Handle();
+                h.Path = path;
+                h.Data = data;
+                _handles[i] = h;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Handle GetHandle(int handle) {
+        return handle >= 0 && handle < MaxHandles ? _handles[handle] : null;
+    }
+
+    private Enums.SystemReplyStatus FinishDownload(int handle) {
+        Handle h = _handles[handle];
+        _handles[handle] = null;
+        StoreFile(h.Path, h.Data);
+        return Enums.SystemReplyStatus.EndOfFile;
+    }
+
+    // copies up to max bytes of an upload into the reply; the handle closes once everything has been read
+    private int ReadChunk(int handle, int max, int offset) {
+        Handle h = _handles[handle];
+        int n = Math.min(Math.min(max, h.Data.length - h.Position), _reply.length - offset);
+        System.arraycopy(h.Data, h.Position, _reply, offset, n);
+        h.Position += n;
+        return offset + n;
+    }
+
+    private Enums.SystemReplyStatus ChunkStatus(int handle) {
+        Handle h = _handles[handle];
+        if (h.Position < h.Data.length)
+            return Enums.SystemReplyStatus.Success;
+        _handles[handle] = null;
+        return Enums.SystemReplyStatus.EndOfFile;
+    }
+
+    private void StoreFile(String path, byte[] data) {
+        CreateDirectories(path.substring(0, path.lastIndexOf('/') + 1));
+        _files.put(path, data);
+    }
+
+    private void CreateDirectories(String dir) {
+        for (int i = dir.indexOf('/'); i >= 0; i = dir.indexOf('/', i + 1))
+            _directories.add(dir.substring(0, i + 1));
+    }
+
+    private Enums.SystemReplyStatus Delete(String path) {
+        if (_files.remove(path) != null)
+            return Enums.SystemReplyStatus.Success;
+
+        String dir = path.endsWith("/") ? path : path + "/";
+        if (!_directories.contains(dir))
+            return Enums.SystemReplyStatus.IllegalPath;
+        String next = _directories.higher(dir);
+        String file = _files.ceilingKey(dir);
+        if ((next != null && next.startsWith(dir)) || (file != null && file.startsWith(dir)))
+            return Enums.SystemReplyStatus.NoPermission;
+        _directories.remove(dir);
+        return Enums.SystemReplyStatus.Success;
+    }
+
+    // a directory listing as the brick formats it: "name/" for directories and "MD5 SIZE name" for files
+    private byte[] Listing(String path) {
+        String dir = path.endsWith("/") ? path : path + "/";
+        if (!_directories.contains(dir))
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        for (String d : _directories.tailSet(dir, false)) {
+            if (!d.startsWith(dir))
+                break;
+            String name = d.substring(dir.length());
+            if (name.indexOf('/') == name.length() - 1)
+                sb.append(name).append('\n');
+        }
+        for (Map.Entry<String, byte[]> e : _files.tailMap(dir, false).entrySet()) {
+            if (!e.getKey().startsWith(dir))
+                break;
+            String name = e.getKey().substring(dir.length());
+            if (name.indexOf('/') < 0)
+                sb.append(Md5(e.getValue())).append(' ').append(String.format("%08X", e.getValue().length)).append(' ').append(name).append('\n');
+        }
+        return sb.toString().getBytes(UTF8);
+    }
+
+    private static String Md5(byte[] data) {
+        try {
+            StringBuilder sb = new StringBuilder(32);
+            for (byte b : MessageDigest.getInstance("MD5").digest(data))
+                sb.append(String.format("%02X", b & 0xff));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return "00000000000000000000000000000000";
+        }
+    }
+
+    // mailbox messages are: name length, null terminated name, payload length (2 bytes), payload
+    private void WriteMailbox() {
+        int nameLength = ReadByte();
+        if (nameLength <= 0 || _pc + nameLength > _codeEnd)
+            throw Bad;
+        String name = new String(_code, _pc, nameLength - 1, UTF8);
+        _pc += nameLength;
+        int size = ReadRaw(2) & 0xffff;
+        if (_pc + size > _codeEnd)
+            throw Bad;
+        _mailboxes.put(name, Arrays.copyOfRange(_code, _pc, _pc + size));
+        _pc += size;
+    }
+
+    // paths are relative to lms2012/sys unless absolute; "." and ".." are resolved
+    private static String Resolve(String path) {
+        String full = path.startsWith("/") ? path : SystemDirectory + path;
+        List<String> parts = new ArrayList<String>();
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals("."))
+                continue;
+            if (part.equals("..")) {
+                if (!parts.isEmpty())
+                    parts.remove(parts.size() - 1);
+            } else {
+                parts.add(part);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts)
+            sb.append('/').append(part);
+        if (full.endsWith("/") || parts.isEmpty())
+            sb.append('/');
+        return sb.toString();
+    }
+}
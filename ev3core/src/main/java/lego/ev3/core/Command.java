@@ -1,6 +1,8 @@
 package lego.ev3.core;
 
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * see https://legoev3.codeplex.com/SourceControl/latest#Lego.Ev3.Core/Command.cs
@@ -10,13 +12,64 @@ import java.nio.charset.Charset;
 /// Command or chain of commands to be written to the EV3 brick
 /// </summary>
 public final class Command {
+    /// <summary>
+    /// Largest frame the brick accepts, including the 2 size bytes
+    /// </summary>
+    public static final int MaxFrameSize = 1024;
+
+    // size, sequence, command type, global/local sizes
+    static final int DirectHeaderSize = 7;
+
+    /// <summary>
+    /// Largest global buffer a single frame can request; its size is sent in 10 bits
+    /// </summary>
+    public static final int MaxGlobalSize = 1023;
+
+    /// <summary>
+    /// Largest global buffer a command can use when it is split across several frames
+    /// </summary>
+    public static final int MaxBatchGlobalSize = Short.MAX_VALUE;
+
+    /// <summary>
+    /// Time allowed for a reply unless <see cref="Timeout"/> is changed, in milliseconds
+    /// </summary>
+    public static final int DefaultTimeout = 1000;
+
+    // entries of the opcode table: frame offset of the opcode, lowest global index used, one past the highest
+    private static final int OpStride = 3;
+    // entries of the global index table: frame offset of the encoded index, the index, its encoded size in bytes
+    private static final int GlobalRefStride = 3;
+
     private BinaryWriter _writer;
     private Brick _brick;
+    private short _globalSize;
+    private int _localSize;
+    private int _globalReserved;
+    private final List<ReplyValue> _replyValues = new ArrayList<ReplyValue>();
+    // where each opcode and global index is in the frame, so an oversized command can be split between opcodes
+    private int[] _ops = new int[OpStride * 8];
+    private int _opCount;
+    private int[] _globalRefs = new int[GlobalRefStride * 8];
+    private int _globalRefCount;
+    // offset of this command's global buffer within the command it was split from
+    int GlobalBase;
 
     public Enums.CommandType CommandType;
 
     public Response Response;
 
+    /// <summary>
+    /// Time allowed for the reply once the command has been sent, in milliseconds; 0 to wait indefinitely.  Reset to
+    /// <see cref="DefaultTimeout"/> by <see cref="Initialize"/>.
+    /// </summary>
+    public int Timeout;
+
+    /// <summary>
+    /// Encode parameters and global indices in the smallest legal form (LC0/LC1/LC2/LC4, GV0/GV1) rather than always
+    /// using the long format.  Turned on by <see cref="Initialize"/> for direct commands.
+    /// </summary>
+    public boolean CompactParameters;
+
     public Command(Brick brick) throws ArgumentException {
         this(Enums.CommandType.DirectNoReply);
         _brick = brick;
@@ -39,27 +92,45 @@ public final class Command {
     }
 
     /// <summary>
-    /// Start a new command of a speicifc type with a global and/or local buffer on the EV3 brick
+    /// Start a new command of a speicifc type with a global and/or local buffer on the EV3 brick.  Calling this on an
+    /// existing command resets it in place, reusing its buffer.
     /// </summary>
     /// <param name="commandType">The type of the command to start</param>
-    /// <param name="globalSize">The size of the global buffer in bytes (maximum of 1024 bytes)</param>
+    /// <param name="globalSize">The size of the global buffer in bytes (maximum of 1023 bytes)</param>
     /// <param name="localSize">The size of the local buffer in bytes (maximum of 64 bytes)</param>
     public void Initialize(Enums.CommandType commandType, short globalSize, int localSize) throws ArgumentException {
-        if (globalSize > 1024)
+        if (globalSize > MaxGlobalSize)
             throw new ArgumentException("Global buffer must be less than 1024 bytes", "globalSize");
         if (localSize > 64)
             throw new ArgumentException("Local buffer must be less than 64 bytes", "localSize");
 
-        _writer = new BinaryWriter();
-        Response = ResponseManager.CreateResponse();
+        if (_writer == null)
+            _writer = new BinaryWriter();
+        else
+            _writer.Reset();
+
+        // the response belongs to the command, so it is recycled along with it; read the reply before reusing it
+        if (Response == null)
+            Response = new Response();
+        else
+            Response.Reset();
 
         CommandType = commandType;
+        _globalSize = globalSize;
+        _localSize = localSize;
+        _globalReserved = 0;
+        Timeout = DefaultTimeout;
+        _replyValues.clear();
+        _opCount = 0;
+        _globalRefCount = 0;
+        GlobalBase = 0;
+        CompactParameters = commandType == Enums.CommandType.DirectReply || commandType == Enums.CommandType.DirectNoReply;
 
         // 2 bytes (this gets filled in later when the user calls ToBytes())
         _writer.Write((short)0xffff);
 
-        // 2 bytes
-        _writer.Write(Response.Sequence);
+        // 2 bytes (assigned by the brick when the command is sent, see SetSequence)
+        _writer.Write((short)0);
 
         // 1 byte
         _writer.Write((byte)commandType.getValue());
@@ -71,12 +142,46 @@ public final class Command {
         }
     }
 
+    /// <summary>
+    /// Stamp the sequence number the command is sent with into the header
+    /// </summary>
+    void SetSequence(short sequence) {
+        _writer.Put(2, sequence);
+    }
+
+    static boolean ExpectsReply(Enums.CommandType commandType) {
+        return commandType == Enums.CommandType.DirectReply || commandType == Enums.CommandType.SystemReply;
+    }
+
+    /// <summary>
+    /// Whether this command can be merged into another direct no-reply frame: it expects no reply and uses no
+    /// global or local buffer.
+    /// </summary>
+    boolean CanBatch() {
+        return CommandType == Enums.CommandType.DirectNoReply && _globalSize == 0 && _localSize == 0;
+    }
+
+    /// <summary>
+    /// Number of bytes following the header, i.e. the opcodes and their parameters
+    /// </summary>
+    int getBodyLength() {
+        return _writer.Size() - DirectHeaderSize;
+    }
+
+    /// <summary>
+    /// Append the opcodes and parameters of a direct command to this one
+    /// </summary>
+    void AddBody(Command other) {
+        other._writer.CopyTo(_writer, DirectHeaderSize);
+    }
+
     public void AddOpcode(Enums.Opcode opcode) {
-        // 1 or 2 bytes (opcode + subcmd, if applicable)
-        // I combined opcode + sub into short where applicable, so we need to pull them back apart here
-        if (opcode.getValue() > Enums.Opcode.Tst.getValue())
-            _writer.Write((byte)((short)opcode.getValue() >> 8));
-        _writer.Write((byte)opcode.getValue());
+        BeginOp();
+
+        // 1 or 2 bytes (opcode + subcmd, if applicable), split apart once when the enum is loaded
+        _writer.Write((byte)opcode.getPrimary());
+        if (opcode.getSubcode() >= 0)
+            _writer.Write((byte)opcode.getSubcode());
     }
 
     public void AddOpcode(Enums.SystemOpcode opcode) {
@@ -84,34 +189,265 @@ public final class Command {
     }
 
     public void AddGlobalIndex(byte index) {
-        // 0xe1 = global index, long format, 1 byte
-        _writer.Write((byte)(0xe1));
-        _writer.Write(index);
+        AddGlobalIndex(index & 0xff);
+    }
+
+    public void AddGlobalIndex(int index) {
+        AddGlobalRef(index);
+
+        if (CompactParameters && index <= 0x1f) {
+            // 0x60 = global index, short format, 5 bits (GV0)
+            _writer.Write((byte)(0x60 | index));
+        } else if (index <= 0xff) {
+            // 0xe1 = global index, long format, 1 byte
+            _writer.Write((byte)(0xe1));
+            _writer.Write((byte)index);
+        } else {
+            // 0xe2 = global index, long format, 2 bytes
+            _writer.Write((byte)(0xe2));
+            _writer.Write((short)index);
+        }
+    }
+
+    /// <summary>
+    /// Reserve the next free, aligned region of the global buffer and grow the buffer size in the header to match.
+    /// </summary>
+    /// <param name="size">Number of bytes to reserve</param>
+    /// <param name="alignment">Required alignment of the region</param>
+    /// <returns>Index of the region in the global buffer</returns>
+    int ReserveGlobal(int size, int alignment) throws ArgumentException {
+        int index = (_globalReserved + alignment - 1) / alignment * alignment;
+        // larger than a single frame allows is fine here: the command is split when sent
+        if (index + size > MaxBatchGlobalSize)
+            throw new ArgumentException("Global buffer must be less than " + MaxBatchGlobalSize + " bytes", "globalSize");
+
+        _globalReserved = index + size;
+        if (_globalReserved > _globalSize) {
+            _globalSize = (short)_globalReserved;
+            // llllllgg gggggggg, see Initialize
+            _writer.Put(5, (byte)_globalSize);
+            _writer.Put(6, (byte)((_localSize << 2) | (_globalSize >> 8) & 0x03));
+        }
+        return index;
+    }
+
+    /// <summary>
+    /// Decode the reply into the values returned by the batch read methods
+    /// </summary>
+    void FillReplyValues() {
+        FillReplyValues(Response, 0);
+    }
+
+    /// <summary>
+    /// Decode part of the reply, e.g. the reply to one frame of a split command
+    /// </summary>
+    /// <param name="reply">Reply carrying part of the global buffer</param>
+    /// <param name="globalBase">Index in this command's global buffer at which the reply's data starts</param>
+    void FillReplyValues(Response reply, int globalBase) {
+        for (int i = 0; i < _replyValues.size(); i++)
+            _replyValues.get(i).Fill(reply, globalBase);
+    }
+
+    /// <summary>
+    /// Mark the values returned by the batch read methods as not ready, so a command that is sent again does not show
+    /// the values of its last reply if the new one does not arrive
+    /// </summary>
+    void ClearReplyValues() {
+        for (int i = 0; i < _replyValues.size(); i++)
+            _replyValues.get(i).Clear();
+    }
+
+    int getGlobalSize() {
+        return _globalSize;
+    }
+
+    /// <summary>
+    /// Whether the command exceeds the frame size or global buffer limits and has to be sent as several frames
+    /// </summary>
+    boolean NeedsSplit() {
+        return (CommandType == Enums.CommandType.DirectReply || CommandType == Enums.CommandType.DirectNoReply) &&
+                (_writer.Size() > MaxFrameSize || _globalSize > MaxGlobalSize);
+    }
+
+    /// <summary>
+    /// Split the command between opcodes into the fewest frames that fit within the frame size and global buffer
+    /// limits.  Each part gets the slice of the global buffer its opcodes use, with global indices rebased to the
+    /// start of the slice (see <see cref="GlobalBase"/>), and the same local buffer size.
+    /// </summary>
+    /// <returns>The parts, in order</returns>
+    List<Command> Split() throws ArgumentException {
+        List<Command> parts = new ArrayList<Command>();
+        if (_opCount == 0)
+            throw new ArgumentException("Command cannot be split", "command");
+
+        int refIndex = 0;
+        int first = 0;
+        int base = 0;
+        while (first < _opCount) {
+            // take as many opcodes as fit in one frame
+            int last = first;
+            int end = base;
+            for (int i = first; i < _opCount; i++) {
+                int regionEnd = GlobalRegionEnd(i);
+                int frameLength = DirectHeaderSize + OpEnd(i) - OpStart(first);
+
+                if (_ops[i * OpStride + 1] >= 0 && _ops[i * OpStride + 1] < end)
+                    throw new ArgumentException("Global buffer indices must increase from one opcode to the next for the command to be split", "index");
+                if (frameLength > MaxFrameSize || (regionEnd >= 0 && regionEnd - base > MaxGlobalSize)) {
+                    if (i == first)
+                        throw new ArgumentException("A single opcode exceeds the frame size or global buffer limits", "command");
+                    break;
+                }
+
+                last = i;
+                if (regionEnd >= 0)
+                    end = regionEnd;
+            }
+
+            Command part = new Command(CommandType, (short)(end - base), _localSize);
+            part.GlobalBase = base;
+            part.Timeout = Timeout;
+            int start = OpStart(first);
+            int partOffset = part._writer.Size() - start;
+            _writer.CopyTo(part._writer, start, OpEnd(last) - start);
+
+            // rebase the global indices used by the opcodes in this part
+            for (; refIndex < _globalRefCount && _globalRefs[refIndex * GlobalRefStride] < OpEnd(last); refIndex++) {
+                int offset = _globalRefs[refIndex * GlobalRefStride] + partOffset;
+                int index = _globalRefs[refIndex * GlobalRefStride + 1] - base;
+                switch (_globalRefs[refIndex * GlobalRefStride + 2]) {
+                    case 1: part._writer.Put(offset, (byte)(0x60 | index)); break;
+                    case 2: part._writer.Put(offset + 1, (byte)index); break;
+                    default: part._writer.Put(offset + 1, (short)index); break;
+                }
+            }
+
+            parts.add(part);
+            base = end;
+            first = last + 1;
+        }
+        return parts;
+    }
+
+    private void BeginOp() {
+        if ((_opCount + 1) * OpStride > _ops.length)
+            _ops = Grow(_ops);
+
+        int op = _opCount++ * OpStride;
+        _ops[op] = _writer.Size();
+        _ops[op + 1] = -1;
+        _ops[op + 2] = -1;
+    }
+
+    private void AddGlobalRef(int index) {
+        if ((_globalRefCount + 1) * GlobalRefStride > _globalRefs.length)
+            _globalRefs = Grow(_globalRefs);
+
+        int ref = _globalRefCount++ * GlobalRefStride;
+        _globalRefs[ref] = _writer.Size();
+        _globalRefs[ref + 1] = index;
+        _globalRefs[ref + 2] = CompactParameters && index <= 0x1f ? 1 : index <= 0xff ? 2 : 3;
+
+        if (_opCount > 0) {
+            int op = (_opCount - 1) * OpStride;
+            if (_ops[op + 1] < 0 || index < _ops[op + 1])
+                _ops[op + 1] = index;
+            _ops[op + 2] = Math.max(_ops[op + 2], index + 1);
+        }
+    }
+
+    // anything written between the header and the first opcode travels with the first opcode
+    private int OpStart(int op) {
+        return op == 0 ? DirectHeaderSize : _ops[op * OpStride];
+    }
+
+    private int OpEnd(int op) {
+        return op + 1 < _opCount ? _ops[(op + 1) * OpStride] : _writer.Size();
+    }
+
+    // the part of the global buffer an opcode owns runs up to where the next opcode using the global buffer starts,
+    // which covers the whole of a value reserved with ReserveGlobal; -1 if the opcode uses no global buffer
+    private int GlobalRegionEnd(int op) {
+        if (_ops[op * OpStride + 1] < 0)
+            return -1;
+
+        for (int i = op + 1; i < _opCount; i++) {
+            if (_ops[i * OpStride + 1] >= 0)
+                return Math.max(_ops[i * OpStride + 1], _ops[op * OpStride + 2]);
+        }
+        return Math.max(_globalSize, _ops[op * OpStride + 2]);
+    }
+
+    private static int[] Grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private <T extends ReplyValue> T AddReplyValue(T value) {
+        _replyValues.add(value);
+        return value;
     }
 
     public void AddParameter(byte parameter) {
+        if (CompactParameters && IsShortConstant(parameter)) {
+            AddShortConstant(parameter);
+            return;
+        }
+
         // 0x81 = long format, 1 byte
         _writer.Write((byte)Enums.ArgumentSize.Byte.getValue());
         _writer.Write(parameter);
     }
 
     public void AddParameter(short parameter) {
+        if (CompactParameters && parameter >= -127 && parameter <= 127) {
+            AddParameter((byte)parameter);
+            return;
+        }
+
         // 0x82 = long format, 2 bytes
         _writer.Write((byte)Enums.ArgumentSize.Short.getValue());
         _writer.Write(parameter);
     }
 
     public void AddParameter(int parameter) {
+        if (CompactParameters && parameter >= -32767 && parameter <= 32767) {
+            AddParameter((short)parameter);
+            return;
+        }
+
         // 0x83 = long format, 4 bytes
         _writer.Write((byte)Enums.ArgumentSize.Int.getValue());
         _writer.Write(parameter);
     }
 
+    // LC0 holds a 6 bit signed constant; -32 is not used by the firmware
+    private static boolean IsShortConstant(int parameter) {
+        return parameter >= -31 && parameter <= 31;
+    }
+
+    private void AddShortConstant(int parameter) {
+        // 0x00 = constant, short format (LC0), value in the lower 6 bits
+        _writer.Write((byte)(parameter & 0x3f));
+    }
+
+    /// <summary>
+    /// Add a one byte parameter that a <see cref="CommandTemplate"/> will patch later.  Always uses the long format so
+    /// the value can be overwritten without changing the frame layout.
+    /// </summary>
+    /// <returns>Offset of the value byte within the frame</returns>
+    int AddSlot(byte parameter) {
+        // 0x81 = long format, 1 byte
+        _writer.Write((byte)Enums.ArgumentSize.Byte.getValue());
+        _writer.Write(parameter);
+        return _writer.Size() - 1;
+    }
+
     public void AddParameter(String s) {
         // 0x84 = long format, null terminated string
         _writer.Write((byte)Enums.ArgumentSize.String.getValue());
-        byte[] bytes = Charset.forName("UTF-8").encode(s).array();
-        _writer.Write(bytes);
+        _writer.Write(StringEncoder.Encode(s));
         _writer.Write((byte)0x00);
     }
 
@@ -129,8 +465,7 @@ public final class Command {
     }
 
     public void AddRawParameter(String s) {
-        byte[] bytes = Charset.forName("UTF-8").encode(s).array();
-        _writer.Write(bytes);
+        _writer.Write(StringEncoder.Encode(s));
         _writer.Write((byte)0x00);
     }
 
@@ -139,16 +474,28 @@ public final class Command {
     }
 
     public byte[] ToBytes() {
-        byte[] buff = _writer.ToArray();
-
         // size of data, not including the 2 size bytes
-        short size = (short)(buff.length - 2);
+        _writer.Put(0, (short)(_writer.Size() - 2));
+        return _writer.ToArray();
+    }
 
-        // little-endian
-        buff[0] = (byte)size;
-        buff[1] = (byte)(size >> 8);
+    /// <summary>
+    /// Encode the command into a caller-supplied buffer, starting at its current position
+    /// </summary>
+    /// <param name="destination">Buffer to receive the frame; must have at least <see cref="getLength"/> bytes remaining</param>
+    /// <returns>The number of bytes written</returns>
+    public int ToBytes(ByteBuffer destination) {
+        // size of data, not including the 2 size bytes
+        _writer.Put(0, (short)(_writer.Size() - 2));
+        _writer.CopyTo(destination);
+        return _writer.Size();
+    }
 
-        return buff;
+    /// <summary>
+    /// Length of the encoded frame in bytes, including the 2 size bytes
+    /// </summary>
+    public int getLength() {
+        return _writer.Size();
     }
 
     /// <summary>
@@ -457,12 +804,12 @@ public final class Command {
     public void GetFirwmareVersion(int maxLength, int index) throws ArgumentException {
         if (maxLength > 0xff)
             throw new ArgumentException("String length cannot be greater than 255 bytes", "maxLength");
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.UIRead_GetFirmware);
         AddParameter((byte)maxLength);        // global buffer size
-        AddGlobalIndex((byte)index);        // index where buffer begins
+        AddGlobalIndex(index);        // index where buffer begins
     }
 
     /// <summary>
@@ -471,12 +818,12 @@ public final class Command {
     /// <param name="button">Button to check</param>
     /// <param name="index">Index at which the data should be returned inside of the global buffer</param>
     public void IsBrickButtonPressed(Enums.BrickButton button, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.UIButton_Pressed);
         AddParameter((byte)button.ordinal());
-        AddGlobalIndex((byte)index);
+        AddGlobalIndex(index);
     }
 
     /// <summary>
@@ -688,16 +1035,16 @@ public final class Command {
     /// <param name="typeIndex">The index to hold the Type value in the global buffer</param>
     /// <param name="modeIndex">The index to hold the Mode value in the global buffer</param>
     public void GetTypeMode(Enums.InputPort port, int typeIndex, int modeIndex) throws ArgumentException {
-        if (typeIndex > 1024)
-            throw new ArgumentException("Index for Type cannot be greater than 1024", "typeIndex");
-        if (modeIndex > 1024)
-            throw new ArgumentException("Index for Mode cannot be greater than 1024", "modeIndex");
+        if (typeIndex > MaxBatchGlobalSize)
+            throw new ArgumentException("Index for Type cannot be greater than " + MaxBatchGlobalSize, "typeIndex");
+        if (modeIndex > MaxBatchGlobalSize)
+            throw new ArgumentException("Index for Mode cannot be greater than " + MaxBatchGlobalSize, "modeIndex");
 
         AddOpcode(Enums.Opcode.InputDevice_GetTypeMode);
         AddParameter((byte)0x00);            // layer
         AddParameter((byte)port.getValue());    // port
-        AddGlobalIndex((byte)typeIndex);    // index for type
-        AddGlobalIndex((byte)modeIndex);    // index for mode
+        AddGlobalIndex(typeIndex);    // index for type
+        AddGlobalIndex(modeIndex);    // index for mode
     }
 
     /// <summary>
@@ -707,8 +1054,8 @@ public final class Command {
     /// <param name="mode">The mode to read the data as</param>
     /// <param name="index">The index to hold the return value in the global buffer</param>
     public void ReadySI(Enums.InputPort port, int mode, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.InputDevice_ReadySI);
         AddParameter((byte)0x00);                // layer
@@ -716,7 +1063,7 @@ public final class Command {
         AddParameter((byte)0x00);                // type
         AddParameter((byte)mode);                // mode
         AddParameter((byte)0x01);                // # values
-        AddGlobalIndex((byte)index);            // index for return data
+        AddGlobalIndex(index);            // index for return data
     }
 
     /// <summary>
@@ -726,8 +1073,8 @@ public final class Command {
     /// <param name="mode">The mode to query the value as</param>
     /// <param name="index">The index in the global buffer to hold the return value</param>
     public void ReadyRaw(Enums.InputPort port, int mode, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.InputDevice_ReadyRaw);
         AddParameter((byte)0x00);                // layer
@@ -735,7 +1082,7 @@ public final class Command {
         AddParameter((byte)0x00);                // type
         AddParameter((byte)mode);                // mode
         AddParameter((byte)0x01);                // # values
-        AddGlobalIndex((byte)index);            // index for return data
+        AddGlobalIndex(index);            // index for return data
     }
 
     /// <summary>
@@ -745,8 +1092,8 @@ public final class Command {
     /// <param name="mode">The mode to query the value as</param>
     /// <param name="index">The index in the global buffer to hold the return value</param>
     public void ReadyPercent(Enums.InputPort port, int mode, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.InputDevice_ReadyPct);
         AddParameter((byte)0x00);                // layer
@@ -754,7 +1101,7 @@ public final class Command {
         AddParameter((byte)0x00);                // type
         AddParameter((byte)mode);                // mode
         AddParameter((byte)0x01);                // # values
-        AddGlobalIndex((byte)index);            // index for return data
+        AddGlobalIndex(index);            // index for return data
     }
 
     /// <summary>
@@ -764,14 +1111,14 @@ public final class Command {
     /// <param name="bufferSize">Size of the buffer to hold the returned data</param>
     /// <param name="index">Index to the position of the returned data in the global buffer</param>
     public void GetDeviceName(Enums.InputPort port, int bufferSize, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.InputDevice_GetDeviceName);
         AddParameter((byte)0x00);
         AddParameter((byte)port.getValue());
         AddParameter((byte)bufferSize);
-        AddGlobalIndex((byte)index);
+        AddGlobalIndex(index);
     }
 
     /// <summary>
@@ -782,15 +1129,109 @@ public final class Command {
     /// <param name="bufferSize">Size of the buffer to hold the returned data</param>
     /// <param name="index">Index to the position of the returned data in the global buffer</param>
     public void GetModeName(Enums.InputPort port, int mode, int bufferSize, int index) throws ArgumentException {
-        if (index > 1024)
-            throw new ArgumentException("Index cannot be greater than 1024", "index");
+        if (index > MaxBatchGlobalSize)
+            throw new ArgumentException("Index cannot be greater than " + MaxBatchGlobalSize, "index");
 
         AddOpcode(Enums.Opcode.InputDevice_GetModeName);
         AddParameter((byte)0x00);
         AddParameter((byte)port.getValue());
         AddParameter((byte)mode);
         AddParameter((byte)bufferSize);
-        AddGlobalIndex((byte)index);
+        AddGlobalIndex(index);
+    }
+
+    /// <summary>
+    /// Append the Get Firmware Version command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="maxLength">Maximum length of string to be returned</param>
+    /// <returns>Handle to the firmware version, filled in when the reply arrives</returns>
+    public ReplyValue.StringValue GetFirmwareVersion(int maxLength) throws ArgumentException {
+        ReplyValue.StringValue value = new ReplyValue.StringValue(ReserveGlobal(maxLength, 1), maxLength);
+        GetFirwmareVersion(maxLength, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Is Brick Pressed command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="button">Button to check</param>
+    /// <returns>Handle to the button state, filled in when the reply arrives</returns>
+    public ReplyValue.ByteValue IsBrickButtonPressed(Enums.BrickButton button) throws ArgumentException {
+        ReplyValue.ByteValue value = new ReplyValue.ByteValue(ReserveGlobal(1, 1));
+        IsBrickButtonPressed(button, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Get Type/Mode command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <returns>Handle to the type and mode, filled in when the reply arrives</returns>
+    public ReplyValue.TypeModeValue GetTypeMode(Enums.InputPort port) throws ArgumentException {
+        ReplyValue.TypeModeValue value = new ReplyValue.TypeModeValue(ReserveGlobal(2, 1));
+        GetTypeMode(port, value.Index, value.Index + 1);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Ready SI command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode to read the data as</param>
+    /// <returns>Handle to the SI value, filled in when the reply arrives</returns>
+    public ReplyValue.FloatValue ReadySI(Enums.InputPort port, int mode) throws ArgumentException {
+        ReplyValue.FloatValue value = new ReplyValue.FloatValue(ReserveGlobal(4, 4));
+        ReadySI(port, mode, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Ready Raw command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode to query the value as</param>
+    /// <returns>Handle to the raw value, filled in when the reply arrives</returns>
+    public ReplyValue.IntValue ReadyRaw(Enums.InputPort port, int mode) throws ArgumentException {
+        ReplyValue.IntValue value = new ReplyValue.IntValue(ReserveGlobal(4, 4));
+        ReadyRaw(port, mode, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Ready Percent command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode to query the value as</param>
+    /// <returns>Handle to the percent value, filled in when the reply arrives</returns>
+    public ReplyValue.ByteValue ReadyPercent(Enums.InputPort port, int mode) throws ArgumentException {
+        ReplyValue.ByteValue value = new ReplyValue.ByteValue(ReserveGlobal(1, 1));
+        ReadyPercent(port, mode, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Get Device Name command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="bufferSize">Size of the buffer to hold the returned data</param>
+    /// <returns>Handle to the device name, filled in when the reply arrives</returns>
+    public ReplyValue.StringValue GetDeviceName(Enums.InputPort port, int bufferSize) throws ArgumentException {
+        ReplyValue.StringValue value = new ReplyValue.StringValue(ReserveGlobal(bufferSize, 1), bufferSize);
+        GetDeviceName(port, bufferSize, value.Index);
+        return AddReplyValue(value);
+    }
+
+    /// <summary>
+    /// Append the Get Mode Name command, reserving space for the result in the global buffer
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode of the name to get</param>
+    /// <param name="bufferSize">Size of the buffer to hold the returned data</param>
+    /// <returns>Handle to the mode name, filled in when the reply arrives</returns>
+    public ReplyValue.StringValue GetModeName(Enums.InputPort port, int mode, int bufferSize) throws ArgumentException {
+        ReplyValue.StringValue value = new ReplyValue.StringValue(ReserveGlobal(bufferSize, 1), bufferSize);
+        GetModeName(port, mode, bufferSize, value.Index);
+        return AddReplyValue(value);
     }
 
     /// <summary>
@@ -799,7 +1240,7 @@ public final class Command {
     /// <returns>A byte array containing the response from the brick, if any.</returns>
     byte[] SendCommand() throws ArgumentException {
         _brick.SendCommand(this);
-        byte[] response = Response.Data;
+        byte[] response = Response.CopyData();
         Initialize(Enums.CommandType.DirectNoReply);
         return response;
     }
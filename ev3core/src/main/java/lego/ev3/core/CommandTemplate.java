@@ -0,0 +1,157 @@
+package lego.ev3.core;
+
+import java.nio.ByteBuffer;
+
+/// <summary>
+/// A direct command frame that is encoded once and then patched in place before each send.  Only the parameters
+/// exposed as slots can change; everything else (opcodes, layer, parameter prefixes) is fixed when the template is built.
+/// </summary>
+public final class CommandTemplate {
+    // 2 size bytes precede the sequence number
+    private static final int SequenceOffset = 2;
+
+    /// <summary>
+    /// A one byte parameter inside the template.  A slot may occur more than once in the frame, e.g. the port mask of
+    /// OutputSpeed and the following OutputStart.
+    /// </summary>
+    public final class Slot {
+        private final String _name;
+        private final int _min;
+        private final int _max;
+        private final int[] _offsets;
+
+        Slot(String name, int min, int max, int... offsets) {
+            _name = name;
+            _min = min;
+            _max = max;
+            _offsets = offsets;
+        }
+
+        /// <summary>
+        /// Overwrite the value of this slot
+        /// </summary>
+        /// <param name="value">The new value</param>
+        public void Set(int value) throws ArgumentException {
+            if (value < _min || value > _max)
+                throw new ArgumentException(_name + " must be between " + _min + " and " + _max + " inclusive.", _name);
+
+            for (int offset : _offsets)
+                _frame[offset] = (byte)value;
+        }
+    }
+
+    private final byte[] _frame;
+    // whether a newer frame from this template makes an unsent older one for the same ports redundant
+    private final boolean _latestWins;
+
+    /// <summary>
+    /// Port mask the command applies to
+    /// </summary>
+    public final Slot Ports;
+
+    /// <summary>
+    /// Power or speed, depending on the template (-100 to 100).  Null if the template has no such parameter.
+    /// </summary>
+    public final Slot Value;
+
+    /// <summary>
+    /// Brake (1) or coast (0).  Null if the template has no such parameter.
+    /// </summary>
+    public final Slot Brake;
+
+    private CommandTemplate(Command command, boolean latestWins, int[] portOffsets, String valueName, int valueOffset, int brakeOffset) {
+        _frame = command.ToBytes();
+        _latestWins = latestWins;
+        Ports = new Slot("Ports", 0x00, 0x0f, portOffsets);
+        Value = valueOffset < 0 ? null : new Slot(valueName, -100, 100, valueOffset);
+        Brake = brakeOffset < 0 ? null : new Slot("Brake", 0, 1, brakeOffset);
+    }
+
+    /// <summary>
+    /// Template for OutputSpeed followed by OutputStart, as sent by <see cref="DirectCommand.TurnMotorAtSpeed"/>
+    /// </summary>
+    public static CommandTemplate TurnMotorAtSpeed() throws ArgumentException {
+        return TurnMotor(Enums.Opcode.OutputSpeed, "Speed");
+    }
+
+    /// <summary>
+    /// Template for OutputPower followed by OutputStart, as sent by <see cref="DirectCommand.TurnMotorAtPower"/>
+    /// </summary>
+    public static CommandTemplate TurnMotorAtPower() throws ArgumentException {
+        return TurnMotor(Enums.Opcode.OutputPower, "Power");
+    }
+
+    /// <summary>
+    /// Template for OutputStop, as sent by <see cref="DirectCommand.StopMotor"/>
+    /// </summary>
+    public static CommandTemplate StopMotor() throws ArgumentException {
+        Command c = new Command(Enums.CommandType.DirectNoReply);
+        c.AddOpcode(Enums.Opcode.OutputStop);
+        c.AddParameter((byte)0x00);            // layer
+        int ports = c.AddSlot((byte)0x00);     // ports
+        int brake = c.AddSlot((byte)0x00);     // brake (0 = coast, 1 = brake)
+        return new CommandTemplate(c, false, new int[] { ports }, null, -1, brake);
+    }
+
+    private static CommandTemplate TurnMotor(Enums.Opcode opcode, String valueName) throws ArgumentException {
+        Command c = new Command(Enums.CommandType.DirectNoReply);
+        c.AddOpcode(opcode);
+        c.AddParameter((byte)0x00);            // layer
+        int ports = c.AddSlot((byte)0x00);     // ports
+        int value = c.AddSlot((byte)0x00);     // power or speed
+        c.AddOpcode(Enums.Opcode.OutputStart);
+        c.AddParameter((byte)0x00);            // layer
+        int startPorts = c.AddSlot((byte)0x00); // ports
+        return new CommandTemplate(c, true, new int[] { ports, startPorts }, valueName, value, -1);
+    }
+
+    /// <summary>
+    /// Append the opcodes and parameters of this template to a direct command
+    /// </summary>
+    void AddBodyTo(Command command) {
+        command.AddRawParameter(_frame, Command.DirectHeaderSize, _frame.length - Command.DirectHeaderSize);
+    }
+
+    /// <summary>
+    /// Whether the frame only sets the current power or speed of its ports, so an unsent earlier frame for the same
+    /// ports can be dropped in favour of this one
+    /// </summary>
+    boolean isLatestWins() {
+        return _latestWins;
+    }
+
+    /// <summary>
+    /// The port mask currently set
+    /// </summary>
+    int getPorts() {
+        return _frame[Ports._offsets[0]];
+    }
+
+    void SetSequence(short sequence) {
+        _frame[SequenceOffset] = (byte)sequence;
+        _frame[SequenceOffset + 1] = (byte)(sequence >> 8);
+    }
+
+    /// <summary>
+    /// The current frame.  The array is owned by the template and changes whenever a slot is set.
+    /// </summary>
+    byte[] getFrame() {
+        return _frame;
+    }
+
+    /// <summary>
+    /// Length of the encoded frame in bytes, including the 2 size bytes
+    /// </summary>
+    public int getLength() {
+        return _frame.length;
+    }
+
+    /// <summary>
+    /// Copy the current frame into a caller-supplied buffer, starting at its current position
+    /// </summary>
+    /// <returns>The number of bytes written</returns>
+    public int ToBytes(ByteBuffer destination) {
+        destination.put(_frame);
+        return _frame.length;
+    }
+}
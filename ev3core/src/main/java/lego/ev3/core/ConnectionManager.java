@@ -0,0 +1,434 @@
+package lego.ev3.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// <summary>
+/// Drives many brick connections from a fixed number of I/O threads.  Each thread owns a selector; every link is
+/// served by one of them, which reads and splits its reports, hands them to the link's receiver (normally a
+/// <see cref="Brick"/>) and writes out the frames queued for it.  The number of threads does not grow with the number
+/// of bricks.
+/// </summary>
+/// <remarks>Reports are delivered on the I/O thread, so callbacks attached to the futures of asynchronous commands run
+/// there too and must not block.</remarks>
+public final class ConnectionManager {
+    /// <summary>
+    /// Bytes that may be queued for one link before writers have to wait
+    /// </summary>
+    public static final int DefaultWriteCapacity = 16 * Command.MaxFrameSize;
+
+    private final IoLoop[] _loops;
+    private final AtomicInteger _next = new AtomicInteger();
+
+    /// <summary>
+    /// Create a manager with one I/O thread
+    /// </summary>
+    public ConnectionManager() throws IOException {
+        this(1);
+    }
+
+    /// <summary>
+    /// Create a manager
+    /// </summary>
+    /// <param name="threads">Number of I/O threads to share the links between</param>
+    public ConnectionManager(int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+
+        _loops = new IoLoop[threads];
+        for (int i = 0; i < threads; i++)
+            _loops[i] = new IoLoop("EV3 I/O " + i);
+    }
+
+    /// <summary>
+    /// Create a link to a brick over Wi-Fi.  Nothing happens on the network until it is connected.
+    /// </summary>
+    /// <param name="host">Host name or IP address of the brick</param>
+    /// <param name="port">TCP port, normally <see cref="NetworkCommunication.DefaultPort"/></param>
+    /// <param name="serialNumber">Serial number of the brick; it unlocks the connection</param>
+    public Link OpenTcp(String host, int port, String serialNumber) {
+        return new Link(NextLoop(), host, port, serialNumber, null, null);
+    }
+
+    /// <summary>
+    /// Create a link over a pair of selectable channels, e.g. the ends of two <see cref="java.nio.channels.Pipe"/>s
+    /// leading to an in-process brick.  Connecting the link starts serving the channels.
+    /// </summary>
+    /// <param name="source">Channel the brick's reports are read from</param>
+    /// <param name="sink">Channel frames for the brick are written to</param>
+    public <R extends SelectableChannel & ReadableByteChannel, W extends SelectableChannel & WritableByteChannel>
+            Link Open(R source, W sink) {
+        return new Link(NextLoop(), null, 0, null, source, sink);
+    }
+
+    /// <summary>
+    /// Disconnect every link and stop the I/O threads
+    /// </summary>
+    public void Close() {
+        for (IoLoop loop : _loops)
+            loop.Close();
+    }
+
+    private IoLoop NextLoop() {
+        return _loops[(_next.getAndIncrement() & 0x7fffffff) % _loops.length];
+    }
+
+    /// <summary>
+    /// A connection to one brick, served by one of the manager's I/O threads
+    /// </summary>
+    public static final class Link implements ICommunication {
+        private final IoLoop _loop;
+        private final String _host;
+        private final int _port;
+        private final String _serialNumber;
+        private final FrameDecoder _decoder = new FrameDecoder();
+
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _notFull = _lock.newCondition();
+        // guarded by _lock; frames waiting to be written, in put mode
+        private ByteBuffer _out = ByteBuffer.allocateDirect(DefaultWriteCapacity);
+        private boolean _flushScheduled;
+        private boolean _closed = true;
+
+        private volatile SelectableChannel _source;
+        private volatile SelectableChannel _sink;
+        private SelectionKey _sourceKey;
+        private SelectionKey _sinkKey;
+        private volatile IReportReceiver _receiver;
+        private volatile IOException _failure;
+        private volatile long _blockedNanos;
+
+        private Link(IoLoop loop, String host, int port, String serialNumber, SelectableChannel source, SelectableChannel sink) {
+            _loop = loop;
+            _host = host;
+            _port = port;
+            _serialNumber = serialNumber;
+            _source = source;
+            _sink = sink;
+        }
+
+        @Override
+        public void SetReportReceiver(IReportReceiver receiver) {
+            _receiver = receiver;
+        }
+
+        /// <summary>
+        /// Connect and hand the link to its I/O thread.  A TCP link connects and unlocks the brick on the calling
+        /// thread first.  On failure the link stays closed and the reason is available from <see cref="getFailure"/>.
+        /// </summary>
+        @Override
+        public void Connect() {
+            ByteBuffer early = null;
+            SelectableChannel source = _source;
+            SelectableChannel sink = _sink;
+            try {
+                if (_host != null) {
+                    early = ByteBuffer.allocate(256);
+                    SocketChannel channel = NetworkCommunication.Open(_host, _port, _serialNumber, early);
+                    source = channel;
+                    sink = channel;
+                }
+                source.configureBlocking(false);
+                sink.configureBlocking(false);
+            } catch (IOException e) {
+                _failure = e;
+                return;
+            }
+
+            _lock.lock();
+            try {
+                _source = source;
+                _sink = sink;
+                _out.clear();
+                _flushScheduled = false;
+                _closed = false;
+                _failure = null;
+            } finally {
+                _lock.unlock();
+            }
+            _decoder.Reset();
+            // any reports that arrived with the unlock reply
+            if (early != null)
+                _decoder.Decode(early, _receiver);
+            _loop.Register(this);
+        }
+
+        @Override
+        public void Disconnect() {
+            Close(null, null);
+        }
+
+        // closes the link.  Given a channel, only if the link still uses it: an error from the channels the link had
+        // before it reconnected must not close the new ones.
+        private void Close(SelectableChannel channel, IOException failure) {
+            SelectableChannel source;
+            SelectableChannel sink;
+            _lock.lock();
+            try {
+                if (_closed || (channel != null && channel != _source && channel != _sink))
+                    return;
+                _closed = true;
+                if (failure != null)
+                    _failure = failure;
+                source = _source;
+                sink = _sink;
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+
+            // closing deregisters the channels from the selector
+            NetworkCommunication.Close(source);
+            if (sink != source)
+                NetworkCommunication.Close(sink);
+        }
+
+        @Override
+        public void Write(byte[] data) {
+            Write(data, 0, data.length);
+        }
+
+        /// <summary>
+        /// Queue a frame for the I/O thread to write.  Waits while the link's queue is full, except on the I/O thread
+        /// itself, where the queue grows instead.  Frames written while the link is closed are dropped.
+        /// </summary>
+        @Override
+        public void Write(byte[] data, int offset, int length) {
+            boolean schedule;
+            _lock.lock();
+            try {
+                if (_out.remaining() < length && !_closed) {
+                    if (_loop.isCurrentThread()) {
+                        // the I/O thread cannot wait for itself to make room, e.g. when a reply frees the in-flight
+                        // window and queued commands are sent from the receiver
+                        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(_out.capacity() * 2, _out.position() + length));
+                        _out.flip();
+                        larger.put(_out);
+                        _out = larger;
+                    } else {
+                        long start = System.nanoTime();
+                        while (_out.remaining() < length && !_closed)
+                            _notFull.awaitUninterruptibly();
+                        _blockedNanos += System.nanoTime() - start;
+                    }
+                }
+                if (_closed)
+                    return;
+
+                _out.put(data, offset, length);
+                schedule = !_flushScheduled;
+                _flushScheduled = true;
+            } finally {
+                _lock.unlock();
+            }
+
+            if (schedule)
+                _loop.RequestFlush(this);
+        }
+
+        public boolean isConnected() {
+            _lock.lock();
+            try {
+                return !_closed;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /// <summary>
+        /// Bytes waiting to be written
+        /// </summary>
+        public int getQueuedBytes() {
+            _lock.lock();
+            try {
+                return _out.position();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /// <summary>
+        /// Total time writers have spent waiting for space, in milliseconds
+        /// </summary>
+        public long getBlockedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(_blockedNanos);
+        }
+
+        /// <summary>
+        /// Why the last connection attempt failed or the connection was lost, or null
+        /// </summary>
+        public IOException getFailure() {
+            return _failure;
+        }
+
+        // called on the I/O thread
+        private void Register(Selector selector) throws ClosedChannelException {
+            _sourceKey = _source.register(selector, SelectionKey.OP_READ, this);
+            if (_sink == _source) {
+                _sinkKey = _sourceKey;
+            } else {
+                _sinkKey = _sink.register(selector, 0, this);
+            }
+            // frames written between connecting and now
+            Flush();
+        }
+
+        // called on the I/O thread
+        private void Read(SelectionKey key, ByteBuffer buffer) {
+            SelectableChannel source = key.channel();
+            try {
+                buffer.clear();
+                if (((ReadableByteChannel)source).read(buffer) < 0)
+                    throw new IOException("Brick closed the connection");
+                buffer.flip();
+                _decoder.Decode(buffer, _receiver);
+            } catch (IOException e) {
+                Close(source, e);
+            }
+        }
+
+        // called on the I/O thread; writes what the channel will take and waits for it to be writable if anything is left
+        private void Flush() {
+            boolean more;
+            IOException failure = null;
+            SelectableChannel sink;
+            _lock.lock();
+            try {
+                if (_closed || _sinkKey == null)
+                    return;
+
+                sink = _sink;
+                _out.flip();
+                try {
+                    ((WritableByteChannel)sink).write(_out);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    _out.compact();
+                }
+                more = _out.position() > 0;
+                _flushScheduled = more;
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+
+            if (failure != null) {
+                Close(sink, failure);
+                return;
+            }
+
+            int ops = _sinkKey == _sourceKey ? SelectionKey.OP_READ : 0;
+            if (_sinkKey.isValid())
+                _sinkKey.interestOps(more ? ops | SelectionKey.OP_WRITE : ops);
+        }
+    }
+
+    // one selector and the thread that runs it
+    private static final class IoLoop implements Runnable {
+        private final Selector _selector;
+        private final Thread _thread;
+        // links waiting to be registered with the selector, or with frames waiting to be written
+        private final ConcurrentLinkedQueue<Link> _registrations = new ConcurrentLinkedQueue<Link>();
+        private final ConcurrentLinkedQueue<Link> _flushes = new ConcurrentLinkedQueue<Link>();
+        private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(8192);
+        private volatile boolean _closed;
+
+        IoLoop(String name) throws IOException {
+            _selector = Selector.open();
+            _thread = new Thread(this, name);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+        boolean isCurrentThread() {
+            return Thread.currentThread() == _thread;
+        }
+
+        void Register(Link link) {
+            _registrations.add(link);
+            _selector.wakeup();
+            // the thread may already have stopped and will not pick the link up
+            if (_closed)
+                DisconnectWaiting();
+        }
+
+        void RequestFlush(Link link) {
+            _flushes.add(link);
+            if (!isCurrentThread())
+                _selector.wakeup();
+        }
+
+        void Close() {
+            _closed = true;
+            _selector.wakeup();
+        }
+
+        // links connected while or after the loop was closing, which it never took over
+        private void DisconnectWaiting() {
+            Link link;
+            while ((link = _registrations.poll()) != null)
+                link.Disconnect();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!_closed) {
+                    Link link;
+                    while ((link = _registrations.poll()) != null) {
+                        try {
+                            link.Register(_selector);
+                        } catch (ClosedChannelException e) {
+                            link.Close(link._source, e);
+                        }
+                    }
+                    while ((link = _flushes.poll()) != null)
+                        link.Flush();
+
+                    _selector.select();
+
+                    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        link = (Link)key.attachment();
+                        if (key.isValid() && key.isReadable())
+                            link.Read(key, _readBuffer);
+                        if (key.isValid() && key.isWritable())
+                            link.Flush();
+                    }
+                }
+            } catch (IOException e) {
+                // the selector itself has failed; the links it served are closed below
+            } finally {
+                List<Link> links = new ArrayList<Link>();
+                for (SelectionKey key : _selector.keys())
+                    links.add((Link)key.attachment());
+                for (Link link : links)
+                    link.Disconnect();
+                DisconnectWaiting();
+                try {
+                    _selector.close();
+                } catch (IOException e) {
+                    // nothing more to do with it
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,72 @@
 package lego.ev3.core;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /// <summary>
 /// Direct commands for the EV3 brick
 /// </summary>
 public class DirectCommand {
     private final Brick _brick;
+    // the templates are patched in place, so only one caller may use them at a time
+    private final ReentrantLock _templateLock = new ReentrantLock();
+    private final CommandTemplate _turnAtPower;
+    private final CommandTemplate _turnAtSpeed;
+    private final CommandTemplate _stop;
 
-    DirectCommand(Brick brick) {
+    DirectCommand(Brick brick) throws ArgumentException {
         _brick = brick;
+        _turnAtPower = CommandTemplate.TurnMotorAtPower();
+        _turnAtSpeed = CommandTemplate.TurnMotorAtSpeed();
+        _stop = CommandTemplate.StopMotor();
+    }
+
+    // no-reply commands are encoded into a command from the brick's pool, so concurrent callers need no lock
+    private Command NoReplyCommand() throws ArgumentException {
+        return _brick.AcquireCommand(Enums.CommandType.DirectNoReply);
+    }
+
+    private void Send(Command c) throws ArgumentException {
+        try {
+            _brick.SendCommand(c);
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    // sends a command that expects a reply and waits for it.  A missing reply is an error: a value read from it would
+    // look like a real reading of 0.
+    private void SendForReply(Command c) throws ArgumentException, TimeoutException {
+        _brick.SendCommand(c);
+        Response r = c.Response;
+        if (r.hasData())
+            return;
+
+        if (r.isTimedOut())
+            throw new TimeoutException("No reply to command " + (r.Sequence & 0xffff) + " within " + c.Timeout + " ms");
+        throw new TimeoutException("Stopped waiting for the reply to command " + (r.Sequence & 0xffff));
+    }
+
+    // sends a reply command from the brick's pool without blocking.  The command goes back to the pool once the reply
+    // has been read into the result, or given up on.
+    private <T> CompletableFuture<T> SendAsync(final Command c, final Function<Command, T> read) throws ArgumentException {
+        return _brick.SendCommandAsync(c).handle(new BiFunction<Command, Throwable, T>() {
+            @Override
+            public T apply(Command command, Throwable failure) {
+                try {
+                    if (failure != null)
+                        throw failure instanceof CompletionException ? (CompletionException)failure : new CompletionException(failure);
+                    return read.apply(c);
+                } finally {
+                    _brick.ReleaseCommand(c);
+                }
+            }
+        });
     }
 
     /// <summary>
@@ -21,10 +76,14 @@ public class DirectCommand {
     /// <param name="power">The power at which to turn the motor (-100 to 100).</param>
     /// <returns></returns>
     public void TurnMotorAtPower(OutputPort ports, int power) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
-        c.TurnMotorAtPower(ports, power);
-        c.StartMotor(ports);
-        _brick.SendCommand(c);
+        _templateLock.lock();
+        try {
+            _turnAtPower.Value.Set(power);
+            _turnAtPower.Ports.Set(ports.getValue());
+            _brick.SendTemplate(_turnAtPower);
+        } finally {
+            _templateLock.unlock();
+        }
     }
 
     /// <summary>
@@ -33,10 +92,14 @@ public class DirectCommand {
     /// <param name="ports">Port or ports to apply the command to.</param>
     /// <param name="speed">The speed to apply to the specified motors (-100 to 100).</param>
     public void TurnMotorAtSpeed(OutputPort ports, int speed) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
-        c.TurnMotorAtSpeed(ports, speed);
-        c.StartMotor(ports);
-        _brick.SendCommand(c);
+        _templateLock.lock();
+        try {
+            _turnAtSpeed.Value.Set(speed);
+            _turnAtSpeed.Ports.Set(ports.getValue());
+            _brick.SendTemplate(_turnAtSpeed);
+        } finally {
+            _templateLock.unlock();
+        }
     }
 
     /// <summary>
@@ -47,9 +110,9 @@ public class DirectCommand {
     /// <param name="steps"></param>
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     public void StepMotorAtPower(OutputPort ports, int power, int steps, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StepMotorAtPower(ports, power, 0, steps, 0, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -62,9 +125,9 @@ public class DirectCommand {
     /// <param name="rampDownSteps"></param>
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     public void StepMotorAtPower(OutputPort ports, int power, int rampUpSteps, int constantSteps, int rampDownSteps, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StepMotorAtPower(ports, power, rampUpSteps, constantSteps, rampDownSteps, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -75,9 +138,9 @@ public class DirectCommand {
     /// <param name="steps"></param>
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     public void StepMotorAtSpeed(OutputPort ports, int speed, int steps, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StepMotorAtSpeed(ports, speed, 0, steps, 0, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
 
@@ -91,9 +154,9 @@ public class DirectCommand {
     /// <param name="rampDownSteps"></param>
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     public void StepMotorAtSpeed(OutputPort ports, int speed, int rampUpSteps, int constantSteps, int rampDownSteps, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StepMotorAtSpeed(ports, speed, rampUpSteps, constantSteps, rampDownSteps, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -105,9 +168,9 @@ public class DirectCommand {
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     /// <returns></returns>
     public void TurnMotorAtPowerForTime(OutputPort ports, int power, int milliseconds, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.TurnMotorAtPowerForTime(ports, power, 0, milliseconds, 0, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -121,9 +184,9 @@ public class DirectCommand {
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     /// <returns></returns>
     public void TurnMotorAtPowerForTime(OutputPort ports, int power, int msRampUp, int msConstant, int msRampDown, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.TurnMotorAtPowerForTime(ports, power, msRampUp, msConstant, msRampDown, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -135,9 +198,9 @@ public class DirectCommand {
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     /// <returns></returns>
     public void TurnMotorAtSpeedForTime(OutputPort ports, int speed, int milliseconds, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.TurnMotorAtSpeedForTime(ports, speed, 0, milliseconds, 0, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -151,9 +214,9 @@ public class DirectCommand {
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     /// <returns></returns>
     public void TurnMotorAtSpeedForTime(OutputPort ports, int speed, int msRampUp, int msConstant, int msRampDown, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.TurnMotorAtSpeedForTime(ports, speed, msRampUp, msConstant, msRampDown, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -163,9 +226,9 @@ public class DirectCommand {
     /// <param name="polarity">The new polarity (direction) value</param>
     /// <returns></returns>
     public void SetMotorPolarity(OutputPort ports, Enums.Polarity polarity) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.SetMotorPolarity(ports, polarity);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -174,9 +237,9 @@ public class DirectCommand {
     /// <param name="ports">The port or ports to which the stop command will be sent.</param>
     /// <returns></returns>
     public void StartMotor(OutputPort ports) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StartMotor(ports);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -189,9 +252,9 @@ public class DirectCommand {
     /// <param name="brake">Brake or coast at the end.</param>
     /// <returns></returns>
     public void StepMotorSync(OutputPort ports, int speed, short turnRatio, int step, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.StepMotorSync(ports, speed, turnRatio, step, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -204,9 +267,9 @@ public class DirectCommand {
     /// <param name="brake">Brake or coast at the end.</param>
     /// <returns></returns>
     public void TimeMotorSync(OutputPort ports, int speed, short turnRatio, int time, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.TimeMotorSync(ports, speed, turnRatio, time, brake);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
 
@@ -217,9 +280,14 @@ public class DirectCommand {
     /// <param name="brake">Apply brake to motor at end of routine.</param>
     /// <returns></returns>
     public void StopMotor(OutputPort ports, boolean brake) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
-        c.StopMotor(ports, brake);
-        _brick.SendCommand(c);
+        _templateLock.lock();
+        try {
+            _stop.Ports.Set(ports.getValue());
+            _stop.Brake.Set(brake ? 0x01 : 0x00);
+            _brick.SendTemplate(_stop);
+        } finally {
+            _templateLock.unlock();
+        }
     }
 
     /// <summary>
@@ -227,9 +295,9 @@ public class DirectCommand {
     /// </summary>
     /// <returns></returns>
     public void ClearAllDevices() throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.ClearAllDevices();
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -238,9 +306,9 @@ public class DirectCommand {
     ///	<param name="port">The port to clear</param>
     /// <returns></returns>
     public void ClearChanges(Enums.InputPort port) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.ClearChanges(port);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -251,9 +319,9 @@ public class DirectCommand {
     /// <param name="duration">Duration to play tone, in milliseconds.</param>
     /// <returns></returns>
     public void PlayTone(int volume, short frequency, short duration) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.PlayTone(volume, frequency, duration);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -263,31 +331,39 @@ public class DirectCommand {
     /// <param name="filename">Filename of sound stored on brick, without the .RSF extension</param>
     /// <returns></returns>
     public void PlaySound(int volume, String filename) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.PlaySound(volume, filename);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
     /// Return the current version number of the firmware running on the EV3 brick.
     /// </summary>
     /// <returns>Current firmware version.</returns>
-    public String GetFirmwareVersion() throws ArgumentException, UnsupportedEncodingException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)0x10, 0);
-        c.GetFirwmareVersion(0x10, 0);
-        _brick.SendCommand(c);
-        if (c.Response.Data == null)
-            return null;
-
-        int index = c.Response.Data.length;
-        for (int i = 0; i < c.Response.Data.length; i++) {
-            if (c.Response.Data[i] == 0) {
-                index = i;
-                break;
-            }
+    public String GetFirmwareVersion() throws ArgumentException, UnsupportedEncodingException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)0x10, 0);
+        try {
+            c.GetFirwmareVersion(0x10, 0);
+            SendForReply(c);
+            return c.Response.getCString(0, 0x10);
+        } finally {
+            _brick.ReleaseCommand(c);
         }
+    }
 
-        return new String(c.Response.Data, 0, index, "UTF-8");
+    /// <summary>
+    /// Get the firmware version on the EV3 brick without blocking
+    /// </summary>
+    /// <returns>A future for the firmware version</returns>
+    public CompletableFuture<String> GetFirmwareVersionAsync() throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.StringValue version = c.GetFirmwareVersion(0x10);
+        return SendAsync(c, new Function<Command, String>() {
+            @Override
+            public String apply(Command command) {
+                return version.getValue();
+            }
+        });
     }
 
     /// <summary>
@@ -295,11 +371,31 @@ public class DirectCommand {
     /// </summary>
     /// <param name="button">Button on the face of the EV3 brick</param>
     /// <returns>Whether or not the button is pressed</returns>
-    public boolean IsBrickButtonPressed(Enums.BrickButton button) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)1, 0);
-        c.IsBrickButtonPressed(button, 0);
-        _brick.SendCommand(c);
-        return false;
+    public boolean IsBrickButtonPressed(Enums.BrickButton button) throws ArgumentException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)1, 0);
+        try {
+            c.IsBrickButtonPressed(button, 0);
+            SendForReply(c);
+            return c.Response.getByte(0) != 0;
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    /// <summary>
+    /// Get whether the specified BrickButton is pressed without blocking
+    /// </summary>
+    /// <param name="button">Button on the face of the EV3 brick</param>
+    /// <returns>A future for whether or not the button is pressed</returns>
+    public CompletableFuture<Boolean> IsBrickButtonPressedAsync(Enums.BrickButton button) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.ByteValue pressed = c.IsBrickButtonPressed(button);
+        return SendAsync(c, new Function<Command, Boolean>() {
+            @Override
+            public Boolean apply(Command command) {
+                return pressed.getBooleanValue();
+            }
+        });
     }
 
     /// <summary>
@@ -308,9 +404,9 @@ public class DirectCommand {
     /// <param name="ledPattern">Pattern to display on LED</param>
     /// <returns></returns>
     public void SetLedPattern(Enums.LedPattern ledPattern) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.SetLedPattern(ledPattern);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -323,9 +419,9 @@ public class DirectCommand {
     /// <param name="y1">Y end</param>
     /// <returns></returns>
     public void DrawLine(Enums.Color color, short x0, short y0, short x1, short y1) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawLine(color, x0, y0, x1, y1);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -336,9 +432,9 @@ public class DirectCommand {
     /// <param name="y">Y position</param>
     /// <returns></returns>
     public void DrawPixel(Enums.Color color, short x, short y) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawPixel(color, x, y);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -352,9 +448,9 @@ public class DirectCommand {
     /// <param name="filled">Filled or empty</param>
     /// <returns></returns>
     public void DrawRectangle(Enums.Color color, short x, short y, short width, short height, boolean filled) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawRectangle(color, x, y, width, height, filled);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -366,9 +462,9 @@ public class DirectCommand {
     /// <param name="height">Height of the rectangle</param>
     /// <returns></returns>
     public void DrawInverseRectangle(short x, short y, short width, short height) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawInverseRectangle(x, y, width, height);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -380,7 +476,10 @@ public class DirectCommand {
     /// <param name="radius">Radius of the circle</param>
     /// <param name="filled">Filled or empty</param>
     /// <returns></returns>
-    public void DrawCircle(Enums.Color color, short x, short y, short radius, boolean filled) {
+    public void DrawCircle(Enums.Color color, short x, short y, short radius, boolean filled) throws ArgumentException {
+        Command c = NoReplyCommand();
+        c.DrawCircle(color, x, y, radius, filled);
+        Send(c);
     }
 
     /// <summary>
@@ -392,9 +491,9 @@ public class DirectCommand {
     /// <param name="text">Text to draw</param>
     /// <returns></returns>
     public void DrawText(Enums.Color color, short x, short y, String text) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
-        c.DrawCircle(color, x, y, (short)0, false);
-        _brick.SendCommand(c);
+        Command c = NoReplyCommand();
+        c.DrawText(color, x, y, text);
+        Send(c);
     }
 
     /// <summary>
@@ -409,9 +508,9 @@ public class DirectCommand {
     /// <param name="offPixels">Number of pixels the line is empty</param>
     /// <returns></returns>
     public void DrawDottedLine(Enums.Color color, short x0, short y0, short x1, short y1, short onPixels, short offPixels) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawDottedLine(color, x0, y0, x1, y1, onPixels, offPixels);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -422,9 +521,9 @@ public class DirectCommand {
     /// <param name="y1">Y end</param>
     /// <returns></returns>
     public void DrawFillWindow(Enums.Color color, short y0, short y1) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawFillWindow(color, y0, y1);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -436,9 +535,9 @@ public class DirectCommand {
     /// <param name="devicePath">Path to the image on the EV3 brick</param>
     /// <returns></returns>
     public void DrawImage(Enums.Color color, short x, short y, String devicePath) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.DrawImage(color, x, y, devicePath);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -447,9 +546,9 @@ public class DirectCommand {
     /// <param name="enabled">Enabled or disabled</param>
     /// <returns></returns>
     public void EnableTopLine(boolean enabled) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.EnableTopLine(enabled);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -458,9 +557,9 @@ public class DirectCommand {
     /// <param name="fontType">Type of font to use</param>
     /// <returns></returns>
     public void SelectFont(Enums.FontType fontType) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.SelectFont(fontType);
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -468,9 +567,9 @@ public class DirectCommand {
     /// </summary>
     /// <returns></returns>
     public void CleanUI() throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.CleanUI();
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -478,9 +577,9 @@ public class DirectCommand {
     /// </summary>
     /// <returns></returns>
     public void UpdateUI() throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectNoReply);
+        Command c = NoReplyCommand();
         c.UpdateUI();
-        _brick.SendCommand(c);
+        Send(c);
     }
 
     /// <summary>
@@ -488,11 +587,31 @@ public class DirectCommand {
     /// </summary>
     /// <param name="port">The input port to query</param>
     /// <returns>2 bytes, index 0 being the type, index 1 being the mode</returns>
-    public byte[] GetTypeMode(Enums.InputPort port) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)2, 0);
-        c.GetTypeMode(port, 0, 1);
-        _brick.SendCommand(c);
-        return c.Response.Data;
+    public byte[] GetTypeMode(Enums.InputPort port) throws ArgumentException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)2, 0);
+        try {
+            c.GetTypeMode(port, 0, 1);
+            SendForReply(c);
+            return c.Response.CopyData();
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    /// <summary>
+    /// Get the type and mode of the device attached to the specified port without blocking
+    /// </summary>
+    /// <param name="port">The input port to query</param>
+    /// <returns>A future for the type and mode</returns>
+    public CompletableFuture<ReplyValue.TypeModeValue> GetTypeModeAsync(Enums.InputPort port) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.TypeModeValue typeMode = c.GetTypeMode(port);
+        return SendAsync(c, new Function<Command, ReplyValue.TypeModeValue>() {
+            @Override
+            public ReplyValue.TypeModeValue apply(Command command) {
+                return typeMode;
+            }
+        });
     }
 
     /// <summary>
@@ -501,11 +620,32 @@ public class DirectCommand {
     /// <param name="port">The port to query</param>
     /// <param name="mode">The mode used to read the data</param>
     /// <returns>The SI value</returns>
-    public float ReadySI(Enums.InputPort port, int mode) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)4, 0);
-        c.ReadySI(port, mode, 0);
-        _brick.SendCommand(c);
-        return ByteBuffer.wrap(c.Response.Data).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+    public float ReadySI(Enums.InputPort port, int mode) throws ArgumentException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)4, 0);
+        try {
+            c.ReadySI(port, mode, 0);
+            SendForReply(c);
+            return c.Response.getFloat(0);
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    /// <summary>
+    /// Read the SI value from the specified port in the specified mode without blocking
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode used to read the data</param>
+    /// <returns>A future for the SI value</returns>
+    public CompletableFuture<Float> ReadySIAsync(Enums.InputPort port, int mode) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.FloatValue value = c.ReadySI(port, mode);
+        return SendAsync(c, new Function<Command, Float>() {
+            @Override
+            public Float apply(Command command) {
+                return value.getValue();
+            }
+        });
     }
 
     /// <summary>
@@ -514,11 +654,32 @@ public class DirectCommand {
     /// <param name="port">The port to query</param>
     /// <param name="mode">The mode used to read the data</param>
     /// <returns>The Raw value</returns>
-    public int ReadyRaw(Enums.InputPort port, int mode) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)4, 0);
-        c.ReadyRaw(port, mode, 0);
-        _brick.SendCommand(c);
-        return ByteBuffer.wrap(c.Response.Data).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    public int ReadyRaw(Enums.InputPort port, int mode) throws ArgumentException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)4, 0);
+        try {
+            c.ReadyRaw(port, mode, 0);
+            SendForReply(c);
+            return c.Response.getInt(0);
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    /// <summary>
+    /// Read the raw value from the specified port in the specified mode without blocking
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode used to read the data</param>
+    /// <returns>A future for the Raw value</returns>
+    public CompletableFuture<Integer> ReadyRawAsync(Enums.InputPort port, int mode) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.IntValue value = c.ReadyRaw(port, mode);
+        return SendAsync(c, new Function<Command, Integer>() {
+            @Override
+            public Integer apply(Command command) {
+                return value.getValue();
+            }
+        });
     }
 
     /// <summary>
@@ -527,11 +688,32 @@ public class DirectCommand {
     /// <param name="port">The port to query</param>
     /// <param name="mode">The mode used to read the data</param>
     /// <returns>The percentage value</returns>
-    public int ReadyPercent(Enums.InputPort port, int mode) throws ArgumentException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)4, 0);
-        c.ReadyPercent(port, mode, 0);
-        _brick.SendCommand(c);
-        return ByteBuffer.wrap(c.Response.Data).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    public int ReadyPercent(Enums.InputPort port, int mode) throws ArgumentException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)1, 0);
+        try {
+            c.ReadyPercent(port, mode, 0);
+            SendForReply(c);
+            return c.Response.getByte(0);
+        } finally {
+            _brick.ReleaseCommand(c);
+        }
+    }
+
+    /// <summary>
+    /// Read the percent value from the specified port in the specified mode without blocking
+    /// </summary>
+    /// <param name="port">The port to query</param>
+    /// <param name="mode">The mode used to read the data</param>
+    /// <returns>A future for the percentage value</returns>
+    public CompletableFuture<Integer> ReadyPercentAsync(Enums.InputPort port, int mode) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.ByteValue value = c.ReadyPercent(port, mode);
+        return SendAsync(c, new Function<Command, Integer>() {
+            @Override
+            public Integer apply(Command command) {
+                return (int)value.getValue();
+            }
+        });
     }
 
     /// <summary>
@@ -539,19 +721,31 @@ public class DirectCommand {
     /// </summary>
     /// <param name="port">Port to query</param>
     /// <returns>The name of the device</returns>
-    public String GetDeviceName(Enums.InputPort port) throws ArgumentException, UnsupportedEncodingException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)0x7f, 0);
-        c.GetDeviceName(port, 0x7f, 0);
-        _brick.SendCommand(c);
-        int index = c.Response.Data.length;
-        for (int i = 0; i < c.Response.Data.length; i++) {
-            if (c.Response.Data[i] == 0) {
-                index = i;
-                break;
-            }
+    public String GetDeviceName(Enums.InputPort port) throws ArgumentException, UnsupportedEncodingException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)0x7f, 0);
+        try {
+            c.GetDeviceName(port, 0x7f, 0);
+            SendForReply(c);
+            return c.Response.getCString(0, 0x7f);
+        } finally {
+            _brick.ReleaseCommand(c);
         }
+    }
 
-        return new String(c.Response.Data, 0, index, "UTF-8");
+    /// <summary>
+    /// Get the name of the device attached to the specified port without blocking
+    /// </summary>
+    /// <param name="port">Port to query</param>
+    /// <returns>A future for the name of the device</returns>
+    public CompletableFuture<String> GetDeviceNameAsync(Enums.InputPort port) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.StringValue name = c.GetDeviceName(port, 0x7f);
+        return SendAsync(c, new Function<Command, String>() {
+            @Override
+            public String apply(Command command) {
+                return name.getValue();
+            }
+        });
     }
 
     /// <summary>
@@ -560,18 +754,31 @@ public class DirectCommand {
     /// <param name="port">Port to query</param>
     /// <param name="mode">Mode of the name to get</param>
     /// <returns>The name of the mode</returns>
-    public String GetModeName(Enums.InputPort port, int mode) throws ArgumentException, UnsupportedEncodingException {
-        Command c = new Command(Enums.CommandType.DirectReply, (short)0x7f, 0);
-        c.GetModeName(port, mode, 0x7f, 0);
-        _brick.SendCommand(c);
-        int index = c.Response.Data.length;
-        for (int i = 0; i < c.Response.Data.length; i++) {
-            if (c.Response.Data[i] == 0) {
-                index = i;
-                break;
-            }
+    public String GetModeName(Enums.InputPort port, int mode) throws ArgumentException, UnsupportedEncodingException, TimeoutException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply, (short)0x7f, 0);
+        try {
+            c.GetModeName(port, mode, 0x7f, 0);
+            SendForReply(c);
+            return c.Response.getCString(0, 0x7f);
+        } finally {
+            _brick.ReleaseCommand(c);
         }
+    }
 
-        return new String(c.Response.Data, 0, index, "UTF-8");
+    /// <summary>
+    /// Get the mode of the device attached to the specified port without blocking
+    /// </summary>
+    /// <param name="port">Port to query</param>
+    /// <param name="mode">Mode of the name to get</param>
+    /// <returns>A future for the name of the mode</returns>
+    public CompletableFuture<String> GetModeNameAsync(Enums.InputPort port, int mode) throws ArgumentException {
+        Command c = _brick.AcquireCommand(Enums.CommandType.DirectReply);
+        final ReplyValue.StringValue name = c.GetModeName(port, mode, 0x7f);
+        return SendAsync(c, new Function<Command, String>() {
+            @Override
+            public String apply(Command command) {
+                return name.getValue();
+            }
+        });
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package lego.ev3.core;
 
+import static lego.ev3.core.Enums.ParameterType.*;
+
 /**
  * see https://legoev3.codeplex.com/SourceControl/latest#Lego.Ev3.Core/Enums.cs
  */
@@ -21,107 +23,277 @@ public class Enums {
         DirectReplyError(0x04),
         SystemReplyError(0x05);
 
+        private static final ReplyType[] ByValue = new ReplyType[256];
+        static {
+            for (ReplyType t : values())
+                ByValue[t.value] = t;
+        }
+
         private int value;
         ReplyType(int i) { value = i;}
         int getValue() { return value; }
 
         public static ReplyType fromValue(int i) {
-            if (i == DirectReply.value)
-                return DirectReply;
-            else if (i == SystemReply.value)
-                return SystemReply;
-            else if (i == DirectReplyError.value)
-                return DirectReplyError;
-            else
-                return SystemReplyError;
+            ReplyType t = ByValue[i & 0xff];
+            return t != null ? t : SystemReplyError;
         }
     }
 
-    public enum Opcode {
-        UIRead_GetFirmware(0x810a),
+    /// <summary>
+    /// How a parameter of an opcode is encoded.  Data types are sent by the caller; global types describe a value the
+    /// brick returns in the global buffer, which together make up the layout of the reply.
+    /// </summary>
+    public enum ParameterType {
+        /// <summary>
+        /// 1 byte integer
+        /// </summary>
+        Data8(1),
+        /// <summary>
+        /// 2 byte integer
+        /// </summary>
+        Data16(2),
+        /// <summary>
+        /// 4 byte integer
+        /// </summary>
+        Data32(4),
+        /// <summary>
+        /// Null terminated string
+        /// </summary>
+        CString(0),
+        /// <summary>
+        /// The rest of the frame (system commands only)
+        /// </summary>
+        Bytes(0),
+        /// <summary>
+        /// 1 byte integer returned by the brick
+        /// </summary>
+        Global8(1),
+        /// <summary>
+        /// 4 byte integer returned by the brick
+        /// </summary>
+        Global32(4),
+        /// <summary>
+        /// 4 byte float returned by the brick
+        /// </summary>
+        GlobalF(4),
+        /// <summary>
+        /// Null terminated string returned by the brick; its size is given by the preceding Data8 parameter
+        /// </summary>
+        GlobalString(0);
 
-        UIWrite_LED(0x821b),
+        private int size;
+        ParameterType(int i) { size = i;}
 
-        UIButton_Pressed(0x8309),
+        /// <summary>
+        /// Size in bytes, or 0 if variable
+        /// </summary>
+        int getSize() { return size; }
+    }
+
+    /// <summary>
+    /// Direct command opcodes with their parameters.  Opcodes with a sub-command combine both into one value
+    /// (0xOOSS); the parameters are listed in the order they are encoded.
+    /// </summary>
+    public enum Opcode {
+        Nop(0x01),
+        KeepAlive(0x90, Data8),
+
+        UIRead_GetVBatt(0x8101, GlobalF),
+        UIRead_GetIBatt(0x8102, GlobalF),
+        UIRead_GetOSVersion(0x8103, Data8, GlobalString),
+        UIRead_GetTBatt(0x8105, GlobalF),
+        UIRead_GetIMotor(0x8107, GlobalF),
+        UIRead_GetHardwareVersion(0x8109, Data8, GlobalString),
+        UIRead_GetFirmware(0x810a, Data8, GlobalString),
+        UIRead_GetFirmwareBuild(0x810b, Data8, GlobalString),
+        UIRead_GetOSBuild(0x810c, Data8, GlobalString),
+        UIRead_GetLBatt(0x8112, Global8),
+
+        UIWrite_LED(0x821b, Data8),
+
+        UIButton_ShortPress(0x8301, Data8, Global8),
+        UIButton_LongPress(0x8302, Data8, Global8),
+        UIButton_Flush(0x8304),
+        UIButton_Pressed(0x8309, Data8, Global8),
 
         UIDraw_Update(0x8400),
         UIDraw_Clean(0x8401),
-        UIDraw_Pixel(0x8402),
-        UIDraw_Line(0x8403),
-        UIDraw_Circle(0x8404),
-        UIDraw_Text(0x8405),
-        UIDraw_FillRect(0x8409),
-        UIDraw_Rect(0x840a),
-        UIDraw_InverseRect(0x8410),
-        UIDraw_SelectFont(0x8411),
-        UIDraw_Topline(0x8412),
-        UIDraw_FillWindow(0x8413),
-        UIDraw_DotLine(0x8415),
-        UIDraw_FillCircle(0x8418),
-        UIDraw_BmpFile(0x841c),
+        UIDraw_Pixel(0x8402, Data8, Data16, Data16),
+        UIDraw_Line(0x8403, Data8, Data16, Data16, Data16, Data16),
+        UIDraw_Circle(0x8404, Data8, Data16, Data16, Data16),
+        UIDraw_Text(0x8405, Data8, Data16, Data16, CString),
+        UIDraw_Icon(0x8406, Data8, Data16, Data16, Data8, Data8),
+        UIDraw_FillRect(0x8409, Data8, Data16, Data16, Data16, Data16),
+        UIDraw_Rect(0x840a, Data8, Data16, Data16, Data16, Data16),
+        UIDraw_InverseRect(0x8410, Data16, Data16, Data16, Data16),
+        UIDraw_SelectFont(0x8411, Data8),
+        UIDraw_Topline(0x8412, Data8),
+        UIDraw_FillWindow(0x8413, Data8, Data16, Data16),
+        UIDraw_DotLine(0x8415, Data8, Data16, Data16, Data16, Data16, Data16, Data16),
+        UIDraw_FillCircle(0x8418, Data8, Data16, Data16, Data16),
+        UIDraw_Store(0x8419, Data8),
+        UIDraw_Restore(0x841a, Data8),
+        UIDraw_BmpFile(0x841c, Data8, Data16, Data16, CString),
 
         Sound_Break(0x9400),
-        Sound_Tone(0x9401),
-        Sound_Play(0x9402),
-        Sound_Repeat(0x9403),
+        Sound_Tone(0x9401, Data8, Data16, Data16),
+        Sound_Play(0x9402, Data8, CString),
+        Sound_Repeat(0x9403, Data8, CString),
         Sound_Service(0x9404),
-
-        InputDevice_GetTypeMode(0x9905),
-        InputDevice_GetDeviceName(0x9915),
-        InputDevice_GetModeName(0x9916),
-        InputDevice_ReadyPct(0x991b),
-        InputDevice_ReadyRaw(0x991c),
-        InputDevice_ReadySI(0x991d),
-        InputDevice_ClearAll(0x990a),
-        InputDevice_ClearChanges(0x991a),
-
-        InputRead(0x9a),
-        InputReadExt(0x9e),
-        InputReadSI(0x9d),
-
-        OutputStop(0xa3),
-        OutputPower(0xa4),
-        OutputSpeed(0xa5),
-        OutputStart(0xa6),
-        OutputPolarity(0xa7),
-        OutputStepPower(0xac),
-        OutputTimePower(0xad),
-        OutputStepSpeed(0xae),
-        OutputTimeSpeed(0xaf),
-        OutputStepSync(0xb0),
-        OutputTimeSync(0xb1),
+        SoundTest(0x95, Global8),
+        SoundReady(0x96),
+
+        InputDevice_GetFormat(0x9902, Data8, Data8, Global8, Global8, Global8, Global8),
+        InputDevice_GetTypeMode(0x9905, Data8, Data8, Global8, Global8),
+        InputDevice_ClearAll(0x990a, Data8),
+        InputDevice_GetConnection(0x990c, Data8, Data8, Global8),
+        InputDevice_StopAll(0x990d, Data8),
+        InputDevice_GetDeviceName(0x9915, Data8, Data8, Data8, GlobalString),
+        InputDevice_GetModeName(0x9916, Data8, Data8, Data8, Data8, GlobalString),
+        InputDevice_GetChanges(0x9919, Data8, Data8, GlobalF),
+        InputDevice_ClearChanges(0x991a, Data8, Data8),
+        InputDevice_ReadyPct(0x991b, Data8, Data8, Data8, Data8, Data8, Global8),
+        InputDevice_ReadyRaw(0x991c, Data8, Data8, Data8, Data8, Data8, Global32),
+        InputDevice_ReadySI(0x991d, Data8, Data8, Data8, Data8, Data8, GlobalF),
+        InputDevice_GetBumps(0x991f, Data8, Data8, GlobalF),
+
+        InputRead(0x9a, Data8, Data8, Data8, Data8, Global8),
+        InputTest(0x9b, Data8, Data8, Global8),
+        InputReady(0x9c, Data8, Data8),
+        InputReadSI(0x9d, Data8, Data8, Data8, Data8, GlobalF),
+        InputReadExt(0x9e, Data8, Data8, Data8, Data8, Data8, Data8, GlobalF),
+
+        OutputGetType(0xa0, Data8, Data8, Global8),
+        OutputSetType(0xa1, Data8, Data8, Data8),
+        OutputReset(0xa2, Data8, Data8),
+        OutputStop(0xa3, Data8, Data8, Data8),
+        OutputPower(0xa4, Data8, Data8, Data8),
+        OutputSpeed(0xa5, Data8, Data8, Data8),
+        OutputStart(0xa6, Data8, Data8),
+        OutputPolarity(0xa7, Data8, Data8, Data8),
+        OutputRead(0xa8, Data8, Data8, Global8, Global32),
+        OutputTest(0xa9, Data8, Data8, Global8),
+        OutputReady(0xaa, Data8, Data8),
+        OutputStepPower(0xac, Data8, Data8, Data8, Data32, Data32, Data32, Data8),
+        OutputTimePower(0xad, Data8, Data8, Data8, Data32, Data32, Data32, Data8),
+        OutputStepSpeed(0xae, Data8, Data8, Data8, Data32, Data32, Data32, Data8),
+        OutputTimeSpeed(0xaf, Data8, Data8, Data8, Data32, Data32, Data32, Data8),
+        OutputStepSync(0xb0, Data8, Data8, Data8, Data16, Data32, Data8),
+        OutputTimeSync(0xb1, Data8, Data8, Data8, Data16, Data32, Data8),
+        OutputClearCount(0xb2, Data8, Data8),
+        OutputGetCount(0xb3, Data8, Data8, Global32),
+        OutputProgramStop(0xb4),
+
+        ComGet_GetBrickName(0xd30d, Data8, GlobalString),
+        ComSet_SetBrickName(0xd408, CString),
 
         Tst(0xff);
 
+        // decode tables: opcodes without a sub-command by their byte, the others by opcode byte and sub-command
+        private static final Opcode[] ByPrimary = new Opcode[256];
+        private static final Opcode[][] BySubcode = new Opcode[256][];
+        static {
+            for (Opcode o : values()) {
+                if (o.subcode < 0) {
+                    ByPrimary[o.primary] = o;
+                } else {
+                    if (BySubcode[o.primary] == null)
+                        BySubcode[o.primary] = new Opcode[32];
+                    BySubcode[o.primary][o.subcode] = o;
+                }
+            }
+        }
+
         private int value;
-        Opcode(int i) { value = i;}
+        private final int primary;
+        private final int subcode;
+        private final ParameterType[] parameters;
+
+        Opcode(int i, ParameterType... parameters) {
+            value = i;
+            primary = i > 0xff ? i >> 8 : i;
+            subcode = i > 0xff ? i & 0xff : -1;
+            this.parameters = parameters;
+        }
+
         int getValue() { return value; }
+
+        /// <summary>
+        /// The opcode byte
+        /// </summary>
+        int getPrimary() { return primary; }
+
+        /// <summary>
+        /// The sub-command byte, or -1 if the opcode has none
+        /// </summary>
+        int getSubcode() { return subcode; }
+
+        ParameterType[] getParameters() { return parameters; }
+
+        /// <summary>
+        /// Whether the opcode byte is followed by a sub-command
+        /// </summary>
+        static boolean hasSubcode(int primary) {
+            return BySubcode[primary & 0xff] != null;
+        }
+
+        /// <summary>
+        /// Look up an opcode by its encoded bytes
+        /// </summary>
+        /// <param name="primary">The opcode byte</param>
+        /// <param name="subcode">The sub-command byte; ignored for opcodes without one</param>
+        /// <returns>The opcode, or null if it is not in the table</returns>
+        static Opcode fromBytes(int primary, int subcode) {
+            Opcode[] subcodes = BySubcode[primary & 0xff];
+            if (subcodes == null)
+                return ByPrimary[primary & 0xff];
+            return subcode >= 0 && subcode < subcodes.length ? subcodes[subcode] : null;
+        }
     }
 
+    /// <summary>
+    /// System command opcodes with their parameters
+    /// </summary>
     public enum SystemOpcode {
-        BeginDownload(0x92),
-        ContinueDownload(0x93),
-        CloseFileHandle(0x98),
-        CreateDirectory(0x9b),
-        DeleteFile(0x9c),
+        BeginDownload(0x92, Data32, CString),
+        ContinueDownload(0x93, Data8, Bytes),
+        BeginUpload(0x94, Data16, CString),
+        ContinueUpload(0x95, Data8, Data16),
+        BeginGetFile(0x96, Data16, CString),
+        ContinueGetFile(0x97, Data8, Data16),
+        CloseFileHandle(0x98, Data8),
+        ListFiles(0x99, Data16, CString),
+        ContinueListFiles(0x9a, Data8, Data16),
+        CreateDirectory(0x9b, CString),
+        DeleteFile(0x9c, CString),
+        ListOpenHandles(0x9d),
+        WriteMailbox(0x9e, Bytes),
+        BluetoothPin(0x9f, Bytes),
+        EnterFirmwareUpdate(0xa0),
 
         Unknown(0xff);
 
+        private static final SystemOpcode[] ByValue = new SystemOpcode[256];
+        static {
+            for (SystemOpcode o : values())
+                ByValue[o.value] = o;
+        }
+
         private int value;
-        SystemOpcode(int i) { value = i;}
+        private final ParameterType[] parameters;
+
+        SystemOpcode(int i, ParameterType... parameters) {
+            value = i;
+            this.parameters = parameters;
+        }
+
         int getValue() { return value; }
 
+        ParameterType[] getParameters() { return parameters; }
+
         public static SystemOpcode fromValue(int i) {
-            if (i == BeginDownload.value)
-                return BeginDownload;
-            else if (i == ContinueDownload.value)
-                return ContinueDownload;
-            else if (i == CloseFileHandle.value)
-                return CloseFileHandle;
-            else if (i == DeleteFile.value)
-                return DeleteFile;
-            else
-                return Unknown;
+            SystemOpcode o = ByValue[i & 0xff];
+            return o != null ? o : Unknown;
         }
     }
 
@@ -140,8 +312,10 @@ public class Enums {
         IllegalFilename,
         IllegalConnection;
 
+        private static final SystemReplyStatus[] Values = values();
+
         public static SystemReplyStatus fromValue(int i) {
-            return values()[i];
+            return i >= 0 && i < Values.length ? Values[i] : UnknownError;
         }
     }
 
@@ -345,27 +519,15 @@ public class Enums {
         DeviceType(int i) { value = i;}
         int getValue() { return value; }
 
+        private static final DeviceType[] ByValue = new DeviceType[256];
+        static {
+            for (DeviceType t : values())
+                ByValue[t.value] = t;
+        }
+
         public static DeviceType fromValue(int type) {
-            switch (type) {
-                case 1: return NxtTouch;
-                case 2: return NxtLight;
-                case 3: return NxtSound;
-                case 4: return NxtColor;
-                case 5: return NxtUltrasonic;
-                case 6: return NxtTemperature;
-                case 7: return LMotor;
-                case 8: return MMotor;
-                case 16: return Touch;
-                case 29: return Color;
-                case 30: return Ultrasonic;
-                case 32: return Gyroscope;
-                case 33: return Infrared;
-                case 0x7d: return Initializing;
-                case 0x7e: return Empty;
-                case 0x7f: return WrongPort;
-                default:
-                case 0xff: return Unknown;
-            }
+            DeviceType t = ByValue[type & 0xff];
+            return t != null ? t : Unknown;
         }
     }
 
@@ -0,0 +1,134 @@
+package lego.ev3.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/// <summary>
+/// Splits the byte stream from the brick into reports.  Each report on the wire is preceded by its length as two
+/// little-endian bytes.  Bytes are read in bulk into one reusable buffer, so a read may end part way through a report
+/// or hold several; complete reports are copied into buffers from the receiver's <see cref="ICommunication.IReportReceiver.AcquireBuffer"/>
+/// and handed over without the length prefix.
+/// </summary>
+/// <remarks>Not thread safe: one decoder per connection, used by its reader thread only.</remarks>
+public final class FrameDecoder {
+    private static final int DefaultCapacity = 4096;
+    // the length prefix cannot describe a larger report
+    private static final int MaxReportSize = 0xffff;
+
+    private byte[] _buffer;
+    // undecoded bytes are _buffer[_start.._end)
+    private int _start;
+    private int _end;
+
+    public FrameDecoder() {
+        _buffer = new byte[DefaultCapacity];
+    }
+
+    /// <summary>
+    /// Read whatever the stream has available and pass on every report it completes.  Blocks until at least one
+    /// byte arrives.
+    /// </summary>
+    /// <param name="in">Stream from the brick</param>
+    /// <param name="receiver">Where to deliver reports; may be null to discard them</param>
+    /// <returns>False once the stream has ended</returns>
+    public boolean Read(InputStream in, ICommunication.IReportReceiver receiver) throws IOException {
+        MakeRoom();
+        int read = in.read(_buffer, _end, _buffer.length - _end);
+        if (read < 0)
+            return false;
+
+        _end += read;
+        Extract(receiver);
+        return true;
+    }
+
+    /// <summary>
+    /// Add bytes received from the brick and pass on every report they complete
+    /// </summary>
+    /// <param name="data">Received bytes, copied before this returns</param>
+    /// <param name="offset">Start of the bytes in data</param>
+    /// <param name="length">Number of bytes</param>
+    /// <param name="receiver">Where to deliver reports; may be null to discard them</param>
+    public void Decode(byte[] data, int offset, int length, ICommunication.IReportReceiver receiver) {
+        while (length > 0) {
+            MakeRoom();
+            int n = Math.min(length, _buffer.length - _end);
+            System.arraycopy(data, offset, _buffer, _end, n);
+            _end += n;
+            offset += n;
+            length -= n;
+            Extract(receiver);
+        }
+    }
+
+    /// <summary>
+    /// Add the remaining bytes of a buffer received from the brick and pass on every report they complete
+    /// </summary>
+    /// <param name="data">Received bytes, consumed before this returns</param>
+    /// <param name="receiver">Where to deliver reports; may be null to discard them</param>
+    public void Decode(ByteBuffer data, ICommunication.IReportReceiver receiver) {
+        while (data.hasRemaining()) {
+            MakeRoom();
+            int n = Math.min(data.remaining(), _buffer.length - _end);
+            data.get(_buffer, _end, n);
+            _end += n;
+            Extract(receiver);
+        }
+    }
+
+    /// <summary>
+    /// Drop any partly received report, e.g. after reconnecting
+    /// </summary>
+    public void Reset() {
+        _start = 0;
+        _end = 0;
+    }
+
+    /// <summary>
+    /// Number of bytes held while waiting for the rest of a report
+    /// </summary>
+    public int getPending() {
+        return _end - _start;
+    }
+
+    private void Extract(ICommunication.IReportReceiver receiver) {
+        while (_end - _start >= 2) {
+            int length = (_buffer[_start] & 0xff) | (_buffer[_start + 1] & 0xff) << 8;
+            if (_end - _start - 2 < length)
+                break;
+
+            if (receiver != null) {
+                byte[] report = receiver.AcquireBuffer(length);
+                System.arraycopy(_buffer, _start + 2, report, 0, length);
+                receiver.ReceiveReport(report, length);
+            }
+            _start += 2 + length;
+        }
+
+        if (_start == _end) {
+            _start = 0;
+            _end = 0;
+        }
+    }
+
+    // makes sure there is space after _end for the rest of the report in progress, or for at least a bulk read
+    private void MakeRoom() {
+        int pending = _end - _start;
+        int needed = pending >= 2
+                ? 2 + ((_buffer[_start] & 0xff) | (_buffer[_start + 1] & 0xff) << 8)
+                : DefaultCapacity;
+
+        if (needed > _buffer.length) {
+            byte[] larger = new byte[Math.min(Math.max(needed, _buffer.length * 2), MaxReportSize + 2)];
+            System.arraycopy(_buffer, _start, larger, 0, pending);
+            _buffer = larger;
+            _start = 0;
+            _end = pending;
+        } else if (_start > 0 && (_end == _buffer.length || _start + needed > _buffer.length)) {
+            System.arraycopy(_buffer, _start, _buffer, 0, pending);
+            _start = 0;
+            _end = pending;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package lego.ev3.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// <summary>
+/// Writes frames to a stream on a thread of its own.  Frames are copied into a bounded ring buffer so the caller
+/// returns straight away; the writer thread takes everything queued since its last write and sends it to the stream
+/// in one call.  A caller only waits when the buffer is full, and the time spent waiting is counted.
+/// <para>Frames queued with <see cref="WriteLatest"/> are held separately, one per set of output ports, so that a newer
+/// setting for the same ports replaces one that has not gone out yet instead of queueing behind it.</para>
+/// </summary>
+public final class FrameWriter {
+    /// <summary>
+    /// Default buffer size, room for 16 full-size frames
+    /// </summary>
+    public static final int DefaultCapacity = 16 * Command.MaxFrameSize;
+
+    // latest-wins frames that may be waiting at once
+    private static final int MaxLatest = 16;
+
+    // a latest-wins frame and where it goes among the other queued bytes
+    private static final class Latest {
+        final byte[] Frame = new byte[Command.MaxFrameSize];
+        int Length;
+        int Ports;
+        // bytes queued in the ring before this frame
+        long Position;
+    }
+
+    private final OutputStream _stream;
+    private final String _name;
+    private final byte[] _ring;
+    // frames are gathered here so that a write is one call even when the queued bytes wrap around the ring
+    private final byte[] _gather;
+    // waiting latest-wins frames in the order they were queued; the rest of the array holds spare entries
+    private final Latest[] _latest = new Latest[MaxLatest];
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    // guarded by _lock
+    private int _head;
+    private int _used;
+    private int _queuedFrames;
+    private int _latestCount;
+    // bytes ever queued in the ring and ever taken from it
+    private long _enqueued;
+    private long _dequeued;
+    private int _maxQueuedBytes;
+    private boolean _closed;
+
+    private volatile IOException _failure;
+    private volatile WriteFailedListener _failedListener;
+    private volatile long _blockedNanos;
+    private volatile long _framesWritten;
+    private volatile long _writes;
+    private volatile long _replaced;
+    private Thread _thread;
+
+    /// <summary>
+    /// Create a writer for a stream
+    /// </summary>
+    /// <param name="stream">The stream to write to, e.g. a socket's output stream</param>
+    /// <param name="name">Name of the writer thread</param>
+    public FrameWriter(OutputStream stream, String name) {
+        this(stream, name, DefaultCapacity);
+    }
+
+    /// <summary>
+    /// Create a writer for a stream
+    /// </summary>
+    /// <param name="stream">The stream to write to, e.g. a socket's output stream</param>
+    /// <param name="name">Name of the writer thread</param>
+    /// <param name="capacity">Bytes that may be queued before callers have to wait; at least one full-size frame</param>
+    public FrameWriter(OutputStream stream, String name, int capacity) {
+        if (capacity < Command.MaxFrameSize)
+            throw new IllegalArgumentException("capacity must hold at least one frame");
+
+        _stream = stream;
+        _name = name;
+        _ring = new byte[capacity];
+        _gather = new byte[capacity + MaxLatest * Command.MaxFrameSize];
+        for (int i = 0; i < MaxLatest; i++)
+            _latest[i] = new Latest();
+    }
+
+    /// <summary>
+    /// Called on the writer thread when a write to the stream fails.  The writer has closed by then, so the owner
+    /// should report the error and tear the connection down.
+    /// </summary>
+    public interface WriteFailedListener {
+        void OnWriteFailed(IOException e);
+    }
+
+    /// <summary>
+    /// Set the listener told about a failed write; set it before <see cref="Start"/> so no failure is missed
+    /// </summary>
+    public void setWriteFailedListener(WriteFailedListener listener) {
+        _failedListener = listener;
+    }
+
+    /// <summary>
+    /// Start the writer thread
+    /// </summary>
+    public void Start() {
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Run();
+            }
+        }, _name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /// <summary>
+    /// Queue a frame.  The buffer may be reused once this returns.  Waits while the queue is full; frames written
+    /// after <see cref="Close"/> or a failed write are dropped.
+    /// </summary>
+    /// <param name="data">Buffer holding the frame</param>
+    /// <param name="offset">Start of the frame in data</param>
+    /// <param name="length">Length of the frame</param>
+    public void Write(byte[] data, int offset, int length) {
+        if (length > _ring.length)
+            throw new IllegalArgumentException("frame is larger than the write queue");
+
+        _lock.lock();
+        try {
+            if (_ring.length - _used < length && !_closed) {
+                long start = System.nanoTime();
+                while (_ring.length - _used < length && !_closed)
+                    _notFull.awaitUninterruptibly();
+                _blockedNanos += System.nanoTime() - start;
+            }
+            if (_closed)
+                return;
+
+            int tail = (_head + _used) % _ring.length;
+            int first = Math.min(length, _ring.length - tail);
+            System.arraycopy(data, offset, _ring, tail, first);
+            System.arraycopy(data, offset + first, _ring, 0, length - first);
+            _used += length;
+            _enqueued += length;
+            _queuedFrames++;
+            if (_used > _maxQueuedBytes)
+                _maxQueuedBytes = _used;
+
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Queue a frame that sets the output ports, such as a motor speed.  If a frame for exactly the same ports is
+    /// still waiting, and nothing that could depend on it (another frame for any of those ports, or any frame queued
+    /// with <see cref="Write"/>) has been queued since, the waiting frame is overwritten in place.  Otherwise the frame
+    /// is queued like any other, so stops and commands for other ports keep their order.
+    /// </summary>
+    /// <param name="ports">Port mask the frame applies to</param>
+    /// <param name="data">Buffer holding the frame</param>
+    /// <param name="offset">Start of the frame in data</param>
+    /// <param name="length">Length of the frame</param>
+    public void WriteLatest(int ports, byte[] data, int offset, int length) {
+        if (length > Command.MaxFrameSize) {
+            Write(data, offset, length);
+            return;
+        }
+
+        _lock.lock();
+        try {
+            Latest entry = null;
+            // only frames queued after the last ring frame can be replaced
+            for (int i = _latestCount - 1; i >= 0 && _latest[i].Position == _enqueued; i--) {
+                if (_latest[i].Ports == ports) {
+                    entry = _latest[i];
+                    _replaced++;
+                    break;
+                }
+                if ((_latest[i].Ports & ports) != 0)
+                    break;
+            }
+
+            if (entry == null) {
+                if (_latestCount == MaxLatest && !_closed) {
+                    long start = System.nanoTime();
+                    while (_latestCount == MaxLatest && !_closed)
+                        _notFull.awaitUninterruptibly();
+                    _blockedNanos += System.nanoTime() - start;
+                }
+                if (_closed)
+                    return;
+
+                entry = _latest[_latestCount++];
+                entry.Ports = ports;
+                entry.Position = _enqueued;
+                _queuedFrames++;
+            }
+
+            System.arraycopy(data, offset, entry.Frame, 0, length);
+            entry.Length = length;
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Stop the writer thread once the frames already queued have been written.  Callers waiting for space return
+    /// without queueing their frames.
+    /// </summary>
+    public void Close() {
+        _lock.lock();
+        try {
+            _closed = true;
+            _notEmpty.signalAll();
+            _notFull.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Wait for the writer thread to finish after <see cref="Close"/>.  Returns straight away when called on the
+    /// writer thread itself, e.g. from a <see cref="WriteFailedListener"/>.
+    /// </summary>
+    /// <param name="timeoutMillis">How long to wait</param>
+    /// <returns>True if the thread has finished</returns>
+    public boolean Join(long timeoutMillis) throws InterruptedException {
+        Thread thread = _thread;
+        if (thread == null)
+            return true;
+        if (thread == Thread.currentThread())
+            return false;
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    /// <summary>
+    /// Bytes waiting to be written
+    /// </summary>
+    public int getQueuedBytes() {
+        _lock.lock();
+        try {
+            int bytes = _used;
+            for (int i = 0; i < _latestCount; i++)
+                bytes += _latest[i].Length;
+            return bytes;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Frames waiting to be written
+    /// </summary>
+    public int getQueuedFrames() {
+        _lock.lock();
+        try {
+            return _queuedFrames;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// The most bytes that have been waiting at once
+    /// </summary>
+    public int getMaxQueuedBytes() {
+        _lock.lock();
+        try {
+            return _maxQueuedBytes;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /// <summary>
+    /// Total time callers have spent waiting for space, in milliseconds
+    /// </summary>
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_blockedNanos);
+    }
+
+    /// <summary>
+    /// Frames written to the stream so far
+    /// </summary>
+    public long getFramesWritten() {
+        return _framesWritten;
+    }
+
+    /// <summary>
+    /// Writes made to the stream so far; fewer than the frames written when frames were gathered
+    /// </summary>
+    public long getWrites() {
+        return _writes;
+    }
+
+    /// <summary>
+    /// Latest-wins frames dropped because a newer frame for the same ports replaced them before they were sent
+    /// </summary>
+    public long getReplacedFrames() {
+        return _replaced;
+    }
+
+    /// <summary>
+    /// The error that stopped the writer, or null
+    /// </summary>
+    public IOException getFailure() {
+        return _failure;
+    }
+
+    private void Run() {
+        while (true) {
+            int length;
+            int frames;
+            _lock.lock();
+            try {
+                while (_used == 0 && _latestCount == 0 && !_closed)
+                    _notEmpty.awaitUninterruptibly();
+                if (_used == 0 && _latestCount == 0)
+                    return;
+
+                // ring bytes and latest-wins frames, merged back into the order they were queued in
+                length = 0;
+                for (int i = 0; i < _latestCount; i++) {
+                    Latest entry = _latest[i];
+                    length = TakeRing(length, (int)(entry.Position - _dequeued));
+                    System.arraycopy(entry.Frame, 0, _gather, length, entry.Length);
+                    length += entry.Length;
+                }
+                length = TakeRing(length, _used);
+
+                frames = _queuedFrames;
+                _latestCount = 0;
+                _queuedFrames = 0;
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+
+            try {
+                _stream.write(_gather, 0, length);
+                _stream.flush();
+                _writes++;
+                _framesWritten += frames;
+            } catch (IOException e) {
+                _failure = e;
+                Close();
+                WriteFailedListener listener = _failedListener;
+                if (listener != null)
+                    listener.OnWriteFailed(e);
+                return;
+            }
+        }
+    }
+
+    // moves count bytes from the ring to _gather at offset; must be called while holding _lock
+    private int TakeRing(int offset, int count) {
+        int first = Math.min(count, _ring.length - _head);
+        System.arraycopy(_ring, _head, _gather, offset, first);
+        System.arraycopy(_ring, 0, _gather, offset + first, count - first);
+        _head = (_head + count) % _ring.length;
+        _used -= count;
+        _dequeued += count;
+        return offset + count;
+    }
+}
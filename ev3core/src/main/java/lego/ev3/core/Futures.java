@@ -0,0 +1,43 @@
+package lego.ev3.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/// <summary>
+/// Helpers for combining the futures returned by the asynchronous brick methods
+/// </summary>
+public final class Futures {
+    private Futures() {
+    }
+
+    /// <summary>
+    /// Wait for several replies together
+    /// </summary>
+    /// <param name="futures">Futures of the same result type, e.g. one per port</param>
+    /// <returns>A future for the results in the same order, which fails if any of the futures fails</returns>
+    public static <T> CompletableFuture<List<T>> AllOf(final List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(new Function<Void, List<T>>() {
+                    @Override
+                    public List<T> apply(Void ignored) {
+                        List<T> results = new ArrayList<T>(futures.size());
+                        for (CompletableFuture<T> f : futures)
+                            results.add(f.join());
+                        return results;
+                    }
+                });
+    }
+
+    /// <summary>
+    /// Wait for several replies together
+    /// </summary>
+    @SafeVarargs
+    public static <T> CompletableFuture<List<T>> AllOf(CompletableFuture<T>... futures) {
+        List<CompletableFuture<T>> list = new ArrayList<CompletableFuture<T>>(futures.length);
+        for (CompletableFuture<T> f : futures)
+            list.add(f);
+        return AllOf(list);
+    }
+}
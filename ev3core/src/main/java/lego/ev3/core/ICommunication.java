@@ -0,0 +1,68 @@
+package lego.ev3.core;
+
+import java.util.Arrays;
+
+/// <summary>
+/// Interface for communicating with the EV3 brick
+/// </summary>
+public interface ICommunication {
+    /// <summary>
+    /// Called when a full report is ready to parse and process.
+    /// </summary>
+    interface IReportReceiver {
+        void ReceiveReport(byte[] data);
+
+        /// <summary>
+        /// Called when a full report is ready, held in the first length bytes of a buffer from
+        /// <see cref="AcquireBuffer"/>.  The buffer belongs to the receiver from then on.
+        /// </summary>
+        default void ReceiveReport(byte[] buffer, int length) {
+            ReceiveReport(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+        }
+
+        /// <summary>
+        /// Get a buffer to receive a report of up to length bytes into, so receivers can recycle them
+        /// </summary>
+        default byte[] AcquireBuffer(int length) {
+            return new byte[length];
+        }
+    }
+
+    void SetReportReceiver(IReportReceiver receiver);
+
+    /// <summary>
+    /// Connect to the EV3 brick.
+    /// </summary>
+    void Connect();
+
+    /// <summary>
+    /// Disconnect from the EV3 brick.
+    /// </summary>
+    void Disconnect();
+
+    /// <summary>
+    /// Write a report to the EV3 brick.
+    /// </summary>
+    /// <param name="data"></param>
+    void Write(byte[] data);
+
+    /// <summary>
+    /// Write part of a buffer as a report to the EV3 brick.  The buffer may be reused once this returns.
+    /// </summary>
+    /// <param name="data"></param>
+    /// <param name="offset"></param>
+    /// <param name="length"></param>
+    void Write(byte[] data, int offset, int length);
+
+    /// <summary>
+    /// Write a report that sets the output ports, such as a motor speed.  A transport that queues reports may replace
+    /// one for the same ports that has not been sent yet, so only the latest setting goes out.
+    /// </summary>
+    /// <param name="ports">Port mask the report applies to</param>
+    /// <param name="data"></param>
+    /// <param name="offset"></param>
+    /// <param name="length"></param>
+    default void WriteLatest(int ports, byte[] data, int offset, int length) {
+        Write(data, offset, length);
+    }
+}
\ No newline at end of file
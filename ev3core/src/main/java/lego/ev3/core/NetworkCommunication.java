@@ -0,0 +1,223 @@
+package lego.ev3.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// <summary>
+/// Communicate with an EV3 brick over Wi-Fi.  The brick listens on TCP port 5555 and, once unlocked with its serial
+/// number, accepts the same direct and system command frames as over Bluetooth.
+/// </summary>
+public final class NetworkCommunication implements ICommunication {
+    /// <summary>
+    /// Port the brick accepts connections on
+    /// </summary>
+    public static final int DefaultPort = 5555;
+
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+    private static final String Accepted = "Accept:EV340";
+    // the unlock reply is a single short header
+    private static final int MaxHandshakeReply = 256;
+
+    private final String _host;
+    private final int _port;
+    private final String _serialNumber;
+
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(Command.MaxFrameSize);
+
+    private volatile SocketChannel _channel;
+    private volatile IReportReceiver _receiver;
+    private volatile IOException _failure;
+
+    /// <summary>
+    /// Create a connection to a brick on the default port
+    /// </summary>
+    /// <param name="host">Host name or IP address of the brick</param>
+    /// <param name="serialNumber">Serial number of the brick, as shown under Brick Info; it unlocks the connection</param>
+    public NetworkCommunication(String host, String serialNumber) {
+        this(host, DefaultPort, serialNumber);
+    }
+
+    /// <summary>
+    /// Create a connection to a brick, or something standing in for one
+    /// </summary>
+    /// <param name="host">Host name or IP address of the brick</param>
+    /// <param name="port">TCP port</param>
+    /// <param name="serialNumber">Serial number of the brick; it unlocks the connection</param>
+    public NetworkCommunication(String host, int port, String serialNumber) {
+        _host = host;
+        _port = port;
+        _serialNumber = serialNumber;
+    }
+
+    @Override
+    public void SetReportReceiver(IReportReceiver receiver) {
+        _receiver = receiver;
+    }
+
+    /// <summary>
+    /// Connect and unlock the brick, then start receiving reports.  On failure the connection stays closed and the
+    /// reason is available from <see cref="getFailure"/>.
+    /// </summary>
+    @Override
+    public void Connect() {
+        // each connection has its own read state, so a reader still winding down from an earlier one cannot disturb it
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+        final FrameDecoder decoder = new FrameDecoder();
+        final SocketChannel channel;
+        try {
+            channel = Open(_host, _port, _serialNumber, readBuffer);
+        } catch (IOException e) {
+            _failure = e;
+            return;
+        }
+
+        _failure = null;
+        _channel = channel;
+        // any reports that arrived with the unlock reply
+        decoder.Decode(readBuffer, _receiver);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Read(channel, readBuffer, decoder);
+            }
+        }, "EV3 reader " + _host);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void Disconnect() {
+        SocketChannel channel = _channel;
+        _channel = null;
+        Close(channel);
+    }
+
+    @Override
+    public void Write(byte[] data) {
+        Write(data, 0, data.length);
+    }
+
+    @Override
+    public void Write(byte[] data, int offset, int length) {
+        _writeLock.lock();
+        try {
+            SocketChannel channel = _channel;
+            if (channel == null)
+                return;
+
+            while (length > 0) {
+                int n = Math.min(length, _writeBuffer.capacity());
+                _writeBuffer.clear();
+                _writeBuffer.put(data, offset, n);
+                _writeBuffer.flip();
+                while (_writeBuffer.hasRemaining())
+                    channel.write(_writeBuffer);
+                offset += n;
+                length -= n;
+            }
+        } catch (IOException e) {
+            Fail(e);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    public boolean isConnected() {
+        return _channel != null;
+    }
+
+    /// <summary>
+    /// Why the last connection attempt failed or the connection was lost, or null
+    /// </summary>
+    public IOException getFailure() {
+        return _failure;
+    }
+
+    /// <summary>
+    /// Connect to a brick and unlock it.  The channel is left in blocking mode.
+    /// </summary>
+    /// <param name="readBuffer">Receives any bytes that follow the unlock reply, ready to be read</param>
+    static SocketChannel Open(String host, int port, String serialNumber, ByteBuffer readBuffer) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(host, port));
+            Unlock(channel, serialNumber, readBuffer);
+            return channel;
+        } catch (IOException e) {
+            Close(channel);
+            throw e;
+        }
+    }
+
+    // sends the unlock request and waits for the brick to accept it; leaves any bytes after the reply in readBuffer
+    private static void Unlock(SocketChannel channel, String serialNumber, ByteBuffer readBuffer) throws IOException {
+        ByteBuffer request = ByteBuffer.wrap(
+                ("GET /target?sn=" + serialNumber + "VMTP1.0\r\nProtocol: EV3\r\n\r\n").getBytes(Ascii));
+        while (request.hasRemaining())
+            channel.write(request);
+
+        readBuffer.clear();
+        int end;
+        while ((end = HeaderEnd(readBuffer)) < 0) {
+            if (readBuffer.position() >= MaxHandshakeReply)
+                throw new IOException("Unexpected unlock reply from brick");
+            if (channel.read(readBuffer) < 0)
+                throw new IOException("Brick closed the connection while unlocking");
+        }
+
+        byte[] header = new byte[end];
+        readBuffer.flip();
+        readBuffer.get(header);
+        String reply = new String(header, Ascii);
+        if (!reply.startsWith(Accepted))
+            throw new IOException("Brick refused the connection: " + reply.trim());
+    }
+
+    // offset just past the blank line that ends the reply header, or -1 if it has not all arrived
+    private static int HeaderEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 1) == '\r' && buffer.get(i) == '\n')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    private void Read(SocketChannel channel, ByteBuffer readBuffer, FrameDecoder decoder) {
+        try {
+            while (_channel == channel) {
+                readBuffer.clear();
+                if (channel.read(readBuffer) < 0)
+                    throw new IOException("Brick closed the connection");
+                readBuffer.flip();
+                decoder.Decode(readBuffer, _receiver);
+            }
+        } catch (IOException e) {
+            if (_channel == channel)
+                Fail(e);
+        }
+    }
+
+    private void Fail(IOException e) {
+        _failure = e;
+        Disconnect();
+    }
+
+    static void Close(Channel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package lego.ev3.core;
+
+/// <summary>
+/// Ports which can send output
+/// </summary>
+public class OutputPort {
+    /// <summary>
+    /// Port A
+    /// </summary>
+    public static final OutputPort A = new OutputPort(0x01);
+    /// <summary>
+    /// Port B
+    /// </summary>
+    public static final OutputPort B = new OutputPort(0x02);
+    /// <summary>
+    /// Port C
+    /// </summary>
+    public static final OutputPort C = new OutputPort(0x04);
+    /// <summary>
+    /// Port D
+    /// </summary>
+    public static final OutputPort D = new OutputPort(0x08);
+    /// <summary>
+    /// Ports A),B),C and D simultaneously
+    /// </summary>
+    public static final OutputPort All = new OutputPort(0x0f);
+    /// <summary>
+    /// None of the ports
+    /// </summary>
+    public static final OutputPort None = new OutputPort(0);
+
+    // every combination of the four ports, so combining ports shares immutable instances instead of allocating
+    private static final OutputPort[] Combinations = new OutputPort[16];
+    static {
+        for (int i = 0; i < Combinations.length; i++)
+            Combinations[i] = new OutputPort(i);
+        Combinations[A.value] = A;
+        Combinations[B.value] = B;
+        Combinations[C.value] = C;
+        Combinations[D.value] = D;
+        Combinations[All.value] = All;
+        Combinations[None.value] = None;
+    }
+
+    private final int value;
+    public OutputPort(int i) { value = i;}
+    int getValue() { return value; }
+
+    public OutputPort Also(OutputPort other) {
+        int combined = value | other.value;
+        return combined < Combinations.length ? Combinations[combined] : new OutputPort(combined);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package lego.ev3.core;
+
+/// <summary>
+/// A value the brick returns in the global buffer of a reply.  Handles are created by the batch read methods on
+/// <see cref="Command"/>, which reserve space for them in the global buffer, and are filled in when the reply arrives.
+/// </summary>
+public abstract class ReplyValue {
+    final int Index;
+    final int Size;
+    private boolean _ready;
+
+    ReplyValue(int index, int size) {
+        Index = index;
+        Size = size;
+    }
+
+    /// <summary>
+    /// Whether a reply has been received and decoded into this value
+    /// </summary>
+    public boolean isReady() {
+        return _ready;
+    }
+
+    /// <summary>
+    /// Decode the value if it lies within the given part of the global buffer
+    /// </summary>
+    /// <param name="reply">Reply carrying part of the global buffer</param>
+    /// <param name="globalBase">Index in the command's global buffer at which the reply's data starts</param>
+    void Fill(Response reply, int globalBase) {
+        if (reply == null || !reply.hasData() || Index < globalBase || reply.getLength() < Index - globalBase + Size)
+            return;
+
+        Decode(reply, Index - globalBase);
+        _ready = true;
+    }
+
+    /// <summary>
+    /// Forget the last value, before the command is sent again
+    /// </summary>
+    void Clear() {
+        _ready = false;
+    }
+
+    abstract void Decode(Response reply, int offset);
+
+    /// <summary>
+    /// A 4 byte floating point value, e.g. an SI reading
+    /// </summary>
+    public static final class FloatValue extends ReplyValue {
+        private float _value;
+
+        FloatValue(int index) {
+            super(index, 4);
+        }
+
+        public float getValue() {
+            return _value;
+        }
+
+        @Override
+        void Decode(Response reply, int offset) {
+            _value = reply.getFloat(offset);
+        }
+    }
+
+    /// <summary>
+    /// A 4 byte integer value, e.g. a raw reading
+    /// </summary>
+    public static final class IntValue extends ReplyValue {
+        private int _value;
+
+        IntValue(int index) {
+            super(index, 4);
+        }
+
+        public int getValue() {
+            return _value;
+        }
+
+        @Override
+        void Decode(Response reply, int offset) {
+            _value = reply.getInt(offset);
+        }
+    }
+
+    /// <summary>
+    /// A 1 byte value, e.g. a percent reading or a button state
+    /// </summary>
+    public static final class ByteValue extends ReplyValue {
+        private byte _value;
+
+        ByteValue(int index) {
+            super(index, 1);
+        }
+
+        public byte getValue() {
+            return _value;
+        }
+
+        /// <summary>
+        /// The value interpreted as a flag, e.g. whether a button is pressed
+        /// </summary>
+        public boolean getBooleanValue() {
+            return _value != 0;
+        }
+
+        @Override
+        void Decode(Response reply, int offset) {
+            _value = reply.getByte(offset);
+        }
+    }
+
+    /// <summary>
+    /// The type and mode of the device attached to a port
+    /// </summary>
+    public static final class TypeModeValue extends ReplyValue {
+        private Enums.DeviceType _type;
+        private byte _mode;
+
+        TypeModeValue(int index) {
+            super(index, 2);
+        }
+
+        public Enums.DeviceType getType() {
+            return _type;
+        }
+
+        public byte getMode() {
+            return _mode;
+        }
+
+        @Override
+        void Decode(Response reply, int offset) {
+            _type = Enums.DeviceType.fromValue(reply.getByte(offset) & 0xff);
+            _mode = reply.getByte(offset + 1);
+        }
+    }
+
+    /// <summary>
+    /// A null terminated string of at most the reserved size
+    /// </summary>
+    public static final class StringValue extends ReplyValue {
+        private String _value;
+
+        StringValue(int index, int size) {
+            super(index, size);
+        }
+
+        public String getValue() {
+            return _value;
+        }
+
+        @Override
+        void Decode(Response reply, int offset) {
+            _value = reply.getCString(offset, Size);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package lego.ev3.core;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by Andrei Tanas on 14-11-27.
+ */
+
+/// <summary>
+/// Reply to a command.  The payload is a read-only view over the buffer the reply was received in; use the typed
+/// accessors to read it in place, and <see cref="CopyData"/> only if the bytes have to be kept.
+/// </summary>
+public class Response {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public Enums.ReplyType ReplyType;
+    public short Sequence;
+    // payload: the global buffer of a direct reply, or what follows the status byte of a system reply
+    private byte[] _buffer;
+    private int _offset;
+    private int _length;
+    public Enums.SystemOpcode SystemCommand;
+    public Enums.SystemReplyStatus SystemReplyStatus;
+
+    // set by the reader thread once the fields above are filled in
+    private volatile boolean _done;
+    // set by the timing wheel if the deadline passes first
+    private volatile boolean _timedOut;
+    // set if the command could not be sent
+    private volatile Throwable _failure;
+    private TimingWheel.Timeout _deadline;
+    ResponseCorrelator.Expiry Expiry;
+    // set by ResponseCorrelator.Register once the response holds a sequence number
+    boolean Registered;
+    // set while the command waits for room in the in-flight window
+    private final AtomicBoolean _queued = new AtomicBoolean();
+    private long _queuedAt;
+    private boolean _wasQueued;
+    private volatile Thread _waiter;
+    // a CompletableFuture<Response>, only created for callers that wait asynchronously; package-private so that
+    // Async can update it
+    volatile Object _future;
+
+    /// <summary>
+    /// Clear the reply so the response can be used for another command
+    /// </summary>
+    void Reset() {
+        ReplyType = null;
+        _buffer = null;
+        _offset = 0;
+        _length = 0;
+        SystemCommand = null;
+        SystemReplyStatus = null;
+        _done = false;
+        _timedOut = false;
+        _failure = null;
+        _deadline = null;
+        Registered = false;
+        _queued.set(false);
+        _wasQueued = false;
+        _waiter = null;
+        _future = null;
+    }
+
+    /// <summary>
+    /// Point the payload at part of a received buffer.  The buffer must not be changed afterwards.
+    /// </summary>
+    void SetData(byte[] buffer, int offset, int length) {
+        _buffer = buffer;
+        _offset = offset;
+        _length = length;
+    }
+
+    /// <summary>
+    /// Take the receive buffer away from the response so it can be returned to a pool
+    /// </summary>
+    /// <returns>The buffer, or null if there is none</returns>
+    byte[] DetachBuffer() {
+        byte[] buffer = _buffer;
+        SetData(null, 0, 0);
+        return buffer;
+    }
+
+    /// <summary>
+    /// Whether the reply carried a payload, i.e. a reply has been received
+    /// </summary>
+    public boolean hasData() {
+        return _buffer != null;
+    }
+
+    /// <summary>
+    /// Length of the payload in bytes
+    /// </summary>
+    public int getLength() {
+        return _length;
+    }
+
+    public byte getByte(int offset) {
+        return _buffer[Index(offset, 1)];
+    }
+
+    /// <summary>
+    /// Read a little-endian 2 byte integer
+    /// </summary>
+    public short getShort(int offset) {
+        int i = Index(offset, 2);
+        return (short)((_buffer[i] & 0xff) | (_buffer[i + 1] & 0xff) << 8);
+    }
+
+    /// <summary>
+    /// Read a little-endian 4 byte integer
+    /// </summary>
+    public int getInt(int offset) {
+        int i = Index(offset, 4);
+        return (_buffer[i] & 0xff) | (_buffer[i + 1] & 0xff) << 8 |
+                (_buffer[i + 2] & 0xff) << 16 | (_buffer[i + 3] & 0xff) << 24;
+    }
+
+    /// <summary>
+    /// Read a little-endian 4 byte float
+    /// </summary>
+    public float getFloat(int offset) {
+        return Float.intBitsToFloat(getInt(offset));
+    }
+
+    /// <summary>
+    /// Read a null terminated UTF-8 string
+    /// </summary>
+    /// <param name="offset">Offset of the string in the payload</param>
+    /// <returns>The string up to the terminator or the end of the payload</returns>
+    public String getCString(int offset) {
+        return getCString(offset, _length - offset);
+    }
+
+    /// <summary>
+    /// Read a null terminated UTF-8 string of at most maxLength bytes
+    /// </summary>
+    public String getCString(int offset, int maxLength) {
+        int start = Index(offset, 0);
+        int end = start;
+        int limit = start + Math.min(maxLength, _length - offset);
+        while (end < limit && _buffer[end] != 0)
+            end++;
+        return new String(_buffer, start, end - start, UTF8);
+    }
+
+    /// <summary>
+    /// Copy the payload out of the receive buffer, for callers that keep it
+    /// </summary>
+    /// <returns>A new array, or null if no reply has been received</returns>
+    public byte[] CopyData() {
+        if (_buffer == null)
+            return null;
+
+        byte[] data = new byte[_length];
+        System.arraycopy(_buffer, _offset, data, 0, _length);
+        return data;
+    }
+
+    /// <summary>
+    /// Copy part of the payload into a caller-supplied array
+    /// </summary>
+    public void CopyTo(int offset, byte[] destination, int destinationOffset, int length) {
+        System.arraycopy(_buffer, Index(offset, length), destination, destinationOffset, length);
+    }
+
+    private int Index(int offset, int size) {
+        if (_buffer == null || offset < 0 || offset + size > _length)
+            throw new IndexOutOfBoundsException("offset");
+        return _offset + offset;
+    }
+
+    boolean isDone() {
+        return _done;
+    }
+
+    /// <summary>
+    /// Whether the command's deadline passed before a reply arrived.  The reply fields stay empty in that case.
+    /// </summary>
+    public boolean isTimedOut() {
+        return _timedOut;
+    }
+
+    /// <summary>
+    /// Why the command could not be sent, or null
+    /// </summary>
+    public Throwable getFailure() {
+        return _failure;
+    }
+
+    void setDeadline(TimingWheel.Timeout deadline) {
+        _deadline = deadline;
+    }
+
+    /// <summary>
+    /// Mark the command as waiting for room in the in-flight window.  Its deadline is started at the same time.
+    /// </summary>
+    void Enqueue() {
+        _queuedAt = System.nanoTime();
+        _wasQueued = true;
+        _queued.set(true);
+    }
+
+    /// <summary>
+    /// Take the command out of the window queue to send it, cancelling the deadline started when it was queued
+    /// </summary>
+    /// <returns>False if the deadline has already passed and the response has timed out</returns>
+    boolean Dequeue() {
+        if (!_queued.compareAndSet(true, false))
+            return false;
+
+        TimingWheel.Timeout deadline = _deadline;
+        if (deadline != null)
+            deadline.Cancel();
+        return true;
+    }
+
+    /// <summary>
+    /// Give up a command still waiting in the window queue because its deadline has passed
+    /// </summary>
+    /// <returns>Whether the command was still queued</returns>
+    boolean ExpireQueued() {
+        return _queued.compareAndSet(true, false);
+    }
+
+    /// <summary>
+    /// What is left of the timeout once the command is sent, counting the time it spent waiting in the window queue
+    /// </summary>
+    /// <param name="timeoutMillis">The command's timeout; 0 to wait indefinitely</param>
+    long getRemainingTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0 || !_wasQueued)
+            return timeoutMillis;
+        return Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _queuedAt));
+    }
+
+    void Complete() {
+        TimingWheel.Timeout deadline = _deadline;
+        if (deadline != null)
+            deadline.Cancel();
+
+        // read before waking the waiter, who may hand the command back to the pool for another caller to reuse
+        Object future = _future;
+        _done = true;
+        Wake();
+        if (future != null)
+            Async.Complete(this, future);
+    }
+
+    /// <summary>
+    /// Give up on the reply because the deadline passed.  Asynchronous waiters see a TimeoutException.
+    /// </summary>
+    void TimeOut() {
+        Object future = _future;
+        _timedOut = true;
+        Wake();
+        if (future != null)
+            Async.TimeOut(this, future);
+    }
+
+    /// <summary>
+    /// Give up on the reply because the command could not be sent.  Asynchronous waiters see the error.
+    /// </summary>
+    void Fail(Throwable failure) {
+        Object future = _future;
+        _failure = failure;
+        Wake();
+        if (future != null)
+            Async.Fail(this, future);
+    }
+
+    private void Wake() {
+        Thread waiter = _waiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /// <summary>
+    /// A future completed with this response when the reply arrives.  It is completed on the thread that receives
+    /// the reply, so dependent actions should be short or run on an executor of their own.
+    /// </summary>
+    CompletableFuture<Response> getFuture() {
+        return Async.getFuture(this);
+    }
+
+    /// <summary>
+    /// Park the calling thread until the reply arrives, the deadline passes or the thread is interrupted
+    /// </summary>
+    /// <returns>Whether the reply arrived</returns>
+    boolean Await() {
+        if (_done)
+            return true;
+
+        _waiter = Thread.currentThread();
+        while (!_done && !_timedOut && _failure == null && !Thread.currentThread().isInterrupted())
+            LockSupport.park(this);
+        _waiter = null;
+        return _done;
+    }
+
+    // Everything that touches CompletableFuture, kept out of Response itself so that the blocking API keeps working
+    // where that class does not exist (Android before API 24).  This class is only loaded once a caller asks for a
+    // future, or a response that has one is completed.
+    private static final class Async {
+        private static final AtomicReferenceFieldUpdater<Response, Object> FutureUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Response.class, Object.class, "_future");
+
+        @SuppressWarnings("unchecked")
+        static CompletableFuture<Response> getFuture(Response r) {
+            CompletableFuture<Response> future = (CompletableFuture<Response>)r._future;
+            if (future == null) {
+                future = new CompletableFuture<Response>();
+                if (!FutureUpdater.compareAndSet(r, null, future))
+                    future = (CompletableFuture<Response>)r._future;
+            }
+            // the reply may have arrived, or the deadline passed, before the future existed
+            if (r._done)
+                future.complete(r);
+            else if (r._timedOut)
+                future.completeExceptionally(Timeout(r));
+            else if (r._failure != null)
+                future.completeExceptionally(r._failure);
+            return future;
+        }
+
+        @SuppressWarnings("unchecked")
+        static void Complete(Response r, Object future) {
+            ((CompletableFuture<Response>)future).complete(r);
+        }
+
+        @SuppressWarnings("unchecked")
+        static void TimeOut(Response r, Object future) {
+            ((CompletableFuture<Response>)future).completeExceptionally(Timeout(r));
+        }
+
+        @SuppressWarnings("unchecked")
+        static void Fail(Response r, Object future) {
+            ((CompletableFuture<Response>)future).completeExceptionally(r._failure);
+        }
+
+        private static TimeoutException Timeout(Response r) {
+            return new TimeoutException("No reply to command " + (r.Sequence & 0xffff));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package lego.ev3.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/// <summary>
+/// Matches replies from one brick to the commands waiting for them.  Every 16 bit sequence number has its own slot,
+/// so the reader thread finds the waiting response with a single array access and without taking any lock.
+/// <para>
+/// Sequence numbers are handed out from a 64 bit counter whose bits above the lowest 16 are the epoch, i.e. how often
+/// the 16 bit sequence space has wrapped.  A slot whose request was given up on keeps a marker tagged with the epoch,
+/// so a late reply is recognised and dropped instead of completing whichever request reuses the number; the slot is
+/// only reused without the late reply once two epochs have passed.  Only the low 32 bits of the epoch are kept and
+/// epochs are compared by their difference, so the check stays correct however long the connection lives.  A slot whose reply has arrived keeps a marker too,
+/// so a duplicate reply is recognised until the number is reused.
+/// </para>
+/// </summary>
+final class ResponseCorrelator {
+    private static final int SequenceCount = 0x10000;
+
+    // slot markers; a slot is free if it holds null or Answered
+    private static final Response Answered = new Response();
+    private static final Response Abandoned = new Response();
+
+    private final AtomicReferenceArray<Response> _slots = new AtomicReferenceArray<Response>(SequenceCount);
+    // low 32 bits of the epoch in which each Abandoned slot was given up; published by the write of the marker
+    private final int[] _abandonedEpochs = new int[SequenceCount];
+    private final AtomicLong _nextSequence = new AtomicLong(1);
+    private final Runnable _slotFreed;
+    private final Runnable _slotExpired;
+
+    private final AtomicLong _staleReplies = new AtomicLong();
+    private final AtomicLong _duplicateReplies = new AtomicLong();
+    private final AtomicLong _unknownReplies = new AtomicLong();
+
+    /// <param name="slotFreed">Called whenever a registered response gives up its slot, because its reply arrived or
+    /// its caller stopped waiting</param>
+    /// <param name="slotExpired">Called instead when the slot is given up because the deadline passed.  It runs on the
+    /// timing wheel thread that all bricks share, so it must be short and must not block, e.g. writing to a link.</param>
+    ResponseCorrelator(Runnable slotFreed, Runnable slotExpired) {
+        _slotFreed = slotFreed;
+        _slotExpired = slotExpired;
+    }
+
+    /// <summary>
+    /// Next sequence number, for a command nobody waits a reply to
+    /// </summary>
+    short NextSequence() {
+        return (short)_nextSequence.getAndIncrement();
+    }
+
+    /// <summary>
+    /// Assign a sequence number whose slot is free to the response and register it for the reply
+    /// </summary>
+    /// <returns>The sequence number to send the command with</returns>
+    short Register(Response r) {
+        for (int i = 0; i < SequenceCount; i++) {
+            long next = _nextSequence.getAndIncrement();
+            int sequence = (int)next & 0xffff;
+            Response current = _slots.get(sequence);
+            // int subtraction, so the difference is right even when the truncated epoch has wrapped
+            boolean free = current == null || current == Answered ||
+                    (current == Abandoned && Epoch(next) - _abandonedEpochs[sequence] >= 2);
+            if (free && _slots.compareAndSet(sequence, current, r)) {
+                r.Sequence = (short)sequence;
+                r.Registered = true;
+                return r.Sequence;
+            }
+        }
+        throw new IllegalStateException("All sequence numbers are waiting for a reply");
+    }
+
+    /// <summary>
+    /// Give up the slot of a response that is no longer waited on, unless a reply has taken it already.  The slot is
+    /// marked so that the reply, should it still arrive, is dropped as stale.
+    /// </summary>
+    /// <returns>Whether the slot was given up by this call</returns>
+    boolean Unregister(Response r) {
+        return Abandon(r, _slotFreed);
+    }
+
+    // gives up the slot because the deadline passed; called on the timing wheel thread
+    private boolean Expire(Response r) {
+        return Abandon(r, _slotExpired);
+    }
+
+    private boolean Abandon(Response r, Runnable freed) {
+        int sequence = r.Sequence & 0xffff;
+        if (_slots.get(sequence) != r)
+            return false;
+
+        _abandonedEpochs[sequence] = Epoch(_nextSequence.get());
+        if (!_slots.compareAndSet(sequence, r, Abandoned))
+            return false;
+
+        freed.run();
+        return true;
+    }
+
+    // low 32 bits of the epoch a counter value falls in
+    private static int Epoch(long next) {
+        return (int)(next >>> 16);
+    }
+
+    /// <summary>
+    /// Replies that arrived after their request was given up, e.g. because it timed out
+    /// </summary>
+    long getStaleReplies() {
+        return _staleReplies.get();
+    }
+
+    /// <summary>
+    /// Replies that arrived again for a request that had already been answered
+    /// </summary>
+    long getDuplicateReplies() {
+        return _duplicateReplies.get();
+    }
+
+    /// <summary>
+    /// Replies that match no request, or are too short to carry a sequence number and reply type
+    /// </summary>
+    long getUnknownReplies() {
+        return _unknownReplies.get();
+    }
+
+    /// <summary>
+    /// Schedule the deadline of a registered response on the shared timing wheel.  When it passes before the reply
+    /// arrives the response is completed as timed out and its slot is freed.
+    /// </summary>
+    /// <param name="timeoutMillis">Time allowed for the reply in milliseconds; 0 to wait indefinitely</param>
+    void StartDeadline(Response r, long timeoutMillis) {
+        if (timeoutMillis <= 0)
+            return;
+
+        Expiry expiry = r.Expiry;
+        if (expiry == null) {
+            expiry = new Expiry(r);
+            r.Expiry = expiry;
+        }
+        expiry.Owner = this;
+        r.setDeadline(TimingWheel.Shared.Schedule(expiry, timeoutMillis));
+    }
+
+    // the deadline task of a response, kept with it so scheduling a deadline does not allocate a new one each time
+    static final class Expiry implements Runnable {
+        private final Response _response;
+        volatile ResponseCorrelator Owner;
+
+        Expiry(Response response) {
+            _response = response;
+        }
+
+        @Override
+        public void run() {
+            // losing the race to the reader thread means the reply has just arrived; a command still waiting for
+            // room in the window has no slot yet and is taken out of the queue instead
+            if (Owner.Expire(_response) || _response.ExpireQueued())
+                _response.TimeOut();
+        }
+    }
+
+    /// <summary>
+    /// Decode a reply and wake up the command waiting for it.  Stale, duplicate and unknown replies are counted and
+    /// dropped.
+    /// </summary>
+    /// <param name="report">Buffer holding the reply without the 2 size bytes.  The response keeps a view over it
+    /// rather than a copy, so the caller must not reuse the array if the reply was taken.</param>
+    /// <param name="length">Length of the reply</param>
+    /// <returns>Whether a response took the buffer</returns>
+    boolean HandleResponse(byte[] report, int length) {
+        if (report == null || length < 3) {
+            _unknownReplies.incrementAndGet();
+            return false;
+        }
+
+        int sequence = (report[0] & 0xff) | (report[1] & 0xff) << 8;
+        Response r;
+        while (true) {
+            r = _slots.get(sequence);
+            if (r == null) {
+                _unknownReplies.incrementAndGet();
+                return false;
+            } else if (r == Answered) {
+                _duplicateReplies.incrementAndGet();
+                return false;
+            } else if (r == Abandoned) {
+                // the late reply has turned up, so the number is safe to reuse
+                _slots.compareAndSet(sequence, Abandoned, null);
+                _staleReplies.incrementAndGet();
+                return false;
+            } else if (_slots.compareAndSet(sequence, r, Answered)) {
+                break;
+            }
+            // lost the race to the deadline; the slot is marked abandoned now
+        }
+
+        r.ReplyType = Enums.ReplyType.fromValue(report[2]);
+
+        if (r.ReplyType == Enums.ReplyType.DirectReply || r.ReplyType == Enums.ReplyType.DirectReplyError) {
+            r.SetData(report, 3, length - 3);
+        } else if (length >= 5) {
+            r.SystemCommand = Enums.SystemOpcode.fromValue(report[3]);
+            r.SystemReplyStatus = Enums.SystemReplyStatus.fromValue(report[4]);
+
+            r.SetData(report, 5, length - 5);
+        }
+
+        r.Complete();
+        _slotFreed.run();
+        return true;
+    }
+
+    /// <summary>
+    /// Block until the reply arrives or the deadline passes.  A waiter that is interrupted gives up its slot.
+    /// </summary>
+    /// <returns>Whether the reply arrived</returns>
+    boolean WaitForResponse(Response r) {
+        boolean done = r.Await();
+        if (!done && !r.isTimedOut())
+            Unregister(r);
+        return done;
+    }
+}
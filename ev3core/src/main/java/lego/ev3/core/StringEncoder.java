@@ -0,0 +1,83 @@
+package lego.ev3.core;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// <summary>
+/// Encodes string parameters as UTF-8, remembering the ones used recently.  File names and sound paths are sent over
+/// and over, so they are encoded once and the exact-length bytes are reused.  The cache is shared by all bricks but
+/// lookups take no lock.
+/// </summary>
+/// <remarks>Once the cache is full, an entry is evicted for each new one by a second-chance sweep, which
+/// approximates least-recently-used: entries read since the last sweep are kept and the rest go in the order they
+/// were added.</remarks>
+class StringEncoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MaxEntries = 64;
+    // longer strings (e.g. text drawn on the screen) are unlikely to repeat and are not worth keeping
+    private static final int MaxCachedLength = 128;
+
+    private static final class Entry {
+        final String Key;
+        final byte[] Bytes;
+        // set when the entry is read, cleared when the sweep passes over it
+        volatile boolean Used;
+
+        Entry(String key, byte[] bytes) {
+            Key = key;
+            Bytes = bytes;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> Cache = new ConcurrentHashMap<String, Entry>();
+    // cached entries, oldest first; the sweep takes from the head and puts entries it keeps back at the tail
+    private static final ConcurrentLinkedQueue<Entry> Order = new ConcurrentLinkedQueue<Entry>();
+    private static final ReentrantLock EvictLock = new ReentrantLock();
+
+    /// <summary>
+    /// The UTF-8 bytes of a string, without a terminator.  The returned array is shared and must not be modified.
+    /// </summary>
+    static byte[] Encode(String s) {
+        if (s.length() > MaxCachedLength)
+            return s.getBytes(UTF8);
+
+        Entry e = Cache.get(s);
+        if (e != null) {
+            // only write when it changes, so hot entries do not bounce between cores
+            if (!e.Used)
+                e.Used = true;
+            return e.Bytes;
+        }
+
+        e = new Entry(s, s.getBytes(UTF8));
+        if (Cache.putIfAbsent(s, e) == null) {
+            Order.add(e);
+            if (Cache.size() > MaxEntries)
+                Evict();
+        }
+        return e.Bytes;
+    }
+
+    private static void Evict() {
+        // one sweep at a time; a thread that finds one running leaves the cache to it
+        if (!EvictLock.tryLock())
+            return;
+        try {
+            while (Cache.size() > MaxEntries) {
+                Entry e = Order.poll();
+                if (e == null)
+                    return;
+                if (e.Used) {
+                    e.Used = false;
+                    Order.add(e);
+                } else {
+                    Cache.remove(e.Key, e);
+                }
+            }
+        } finally {
+            EvictLock.unlock();
+        }
+    }
+}
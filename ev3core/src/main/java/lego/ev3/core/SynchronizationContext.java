@@ -4,5 +4,5 @@ package lego.ev3.core;
  * Created by Andrei Tanas on 14-11-28.
  */
 public class SynchronizationContext {
-    public static SynchronizationContext Current = new SynchronizationContext();
+    public static final SynchronizationContext Current = new SynchronizationContext();
 }
@@ -0,0 +1,218 @@
+package lego.ev3.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/// <summary>
+/// Direct commands for the EV3 brick
+/// </summary>
+public class SystemCommand
+{
+    // file data sent per ContinueDownload, leaving room for the header within a frame
+    private static final int ChunkSize = 960;
+
+    private final Brick _brick;
+
+    SystemCommand(Brick brick)
+    {
+        _brick = brick;
+    }
+
+    /// <summary>
+    /// Write a file to the EV3 brick
+    /// </summary>
+    /// <param name="data">Data to write.</param>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns></returns>
+    ///	<remarks>devicePath is relative from "lms2012/sys" on the EV3 brick.  Destination folders are automatically created if provided in the path.  The path must start with "apps", "prjs", or "tools".</remarks>
+    public void WriteFile(final byte[] data, String devicePath) throws ArgumentException, IOException {
+        Command commandBegin = new Command(Enums.CommandType.SystemReply);
+        commandBegin.AddOpcode(Enums.SystemOpcode.BeginDownload);
+        commandBegin.AddRawParameter(data.length);
+        commandBegin.AddRawParameter(devicePath);
+
+        _brick.SendCommand(commandBegin);
+        if(commandBegin.Response.SystemReplyStatus != Enums.SystemReplyStatus.Success)
+            throw new IOException("Could not begin file save: " + commandBegin.Response.SystemReplyStatus);
+
+        byte handle = commandBegin.Response.getByte(0);
+
+        // all chunks are sent without waiting for each reply in turn; the brick's in-flight window limits how many
+        // are outstanding at once
+        List<Command> chunks = ChunkCommands(handle, data);
+        _brick.SendCommands(chunks);
+        String error = CheckChunks(chunks);
+        if (error != null)
+            throw new IOException(error);
+
+        //Command commandClose = new Command(CommandType.SystemReply);
+        //commandClose.AddOpcode(SystemOpcode.CloseFileHandle);
+        //commandClose.AddRawParameter(handle);
+        //await _brick.SendCommandAsyncInternal(commandClose);
+        //if(commandClose.Response.SystemReplyStatus != SystemReplyStatus.Success)
+        //	throw new Exception("Could not close handle: " + commandClose.Response.SystemReplyStatus);
+    }
+
+    /// <summary>
+    /// Write a file to the EV3 brick without blocking
+    /// </summary>
+    /// <param name="data">Data to write.</param>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns>A future that completes when the whole file has been written, or fails with an IOException</returns>
+    ///	<remarks>devicePath is relative from "lms2012/sys" on the EV3 brick.  Destination folders are automatically created if provided in the path.  The path must start with "apps", "prjs", or "tools".</remarks>
+    public CompletableFuture<Void> WriteFileAsync(final byte[] data, String devicePath) throws ArgumentException {
+        Command commandBegin = new Command(Enums.CommandType.SystemReply);
+        commandBegin.AddOpcode(Enums.SystemOpcode.BeginDownload);
+        commandBegin.AddRawParameter(data.length);
+        commandBegin.AddRawParameter(devicePath);
+
+        return _brick.SendCommandAsync(commandBegin).thenCompose(new Function<Command, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(Command c) {
+                if (c.Response.SystemReplyStatus != Enums.SystemReplyStatus.Success)
+                    throw new CompletionException(new IOException("Could not begin file save: " + c.Response.SystemReplyStatus));
+
+                return SendChunksAsync(c.Response.getByte(0), data);
+            }
+        });
+    }
+
+    // sends the file data in ContinueDownload chunks; fails with an IOException if a chunk is rejected.  Only used by
+    // WriteFileAsync, so the blocking path never loads CompletableFuture.
+    private CompletableFuture<Void> SendChunksAsync(byte handle, final byte[] data) {
+        final List<CompletableFuture<Command>> chunks = new ArrayList<CompletableFuture<Command>>();
+        try {
+            for (Command c : ChunkCommands(handle, data))
+                chunks.add(_brick.SendCommandAsync(c));
+        } catch (ArgumentException e) {
+            throw new CompletionException(e);
+        }
+
+        return Futures.AllOf(chunks).thenApply(new Function<List<Command>, Void>() {
+            @Override
+            public Void apply(List<Command> commands) {
+                String error = CheckChunks(commands);
+                if (error != null)
+                    throw new CompletionException(new IOException(error));
+                return null;
+            }
+        });
+    }
+
+    // the ContinueDownload commands that carry the file data
+    private static List<Command> ChunkCommands(byte handle, byte[] data) throws ArgumentException {
+        List<Command> chunks = new ArrayList<Command>();
+        int sizeSent = 0;
+        while (sizeSent < data.length) {
+            Command commandContinue = new Command(Enums.CommandType.SystemReply);
+            commandContinue.AddOpcode(Enums.SystemOpcode.ContinueDownload);
+            commandContinue.AddRawParameter(handle);
+            int sizeToSend = Math.min(ChunkSize, data.length - sizeSent);
+            commandContinue.AddRawParameter(data, sizeSent, sizeToSend);
+            sizeSent += sizeToSend;
+            chunks.add(commandContinue);
+        }
+        return chunks;
+    }
+
+    // the error for the first chunk the brick did not accept, or null; the last chunk may report EndOfFile
+    private static String CheckChunks(List<Command> chunks) {
+        for (int i = 0; i < chunks.size(); i++) {
+            Enums.SystemReplyStatus status = chunks.get(i).Response.SystemReplyStatus;
+            if (status == Enums.SystemReplyStatus.Success ||
+                    (status == Enums.SystemReplyStatus.EndOfFile && i == chunks.size() - 1))
+                continue;
+            return status != null ? "Error saving file: " + status : "No reply to chunk " + i + " of the file";
+        }
+        return null;
+    }
+
+    /// <summary>
+    /// Copy a local file to the EV3 brick
+    /// </summary>
+    /// <param name="localPath">Source path on the computer.</param>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns></returns>
+    ///	<remarks>devicePath is relative from "lms2012/sys" on the EV3 brick.  Destination folders are automatically created if provided in the path.  The path must start with "apps", "prjs", or "tools".</remarks>
+    public void CopyFile(String localPath, String devicePath) throws IOException, ArgumentException {
+        byte[] data = GetFileContents(localPath);
+        WriteFile(data, devicePath);
+    }
+
+    /// <summary>
+    /// Create a directory on the EV3 brick
+    /// </summary>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns></returns>
+    ///	<remarks>devicePath is relative from "lms2012/sys" on the EV3 brick.  Destination folders are automatically created if provided in the path.  The path must start with "apps", "prjs", or "tools".</remarks>
+    public void CreateDirectory(String devicePath) throws ArgumentException, IOException {
+        Command c = new Command(Enums.CommandType.SystemReply);
+        c.CreateDirectory(devicePath);
+        _brick.SendCommand(c);
+        if(c.Response.SystemReplyStatus != Enums.SystemReplyStatus.Success)
+            throw new IOException("Error creating directory: " + c.Response.SystemReplyStatus);
+    }
+
+    /// <summary>
+    /// Create a directory on the EV3 brick without blocking
+    /// </summary>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns>A future that completes when the directory has been created, or fails with an IOException</returns>
+    public CompletableFuture<Void> CreateDirectoryAsync(String devicePath) throws ArgumentException {
+        Command c = new Command(Enums.CommandType.SystemReply);
+        c.CreateDirectory(devicePath);
+        return _brick.SendCommandAsync(c).thenApply(StatusCheck("Error creating directory: "));
+    }
+
+    /// <summary>
+    /// Delete file from the EV3 brick
+    /// </summary>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns></returns>
+    /// <remarks>devicePath is relative from "lms2012/sys" on the EV3 brick.  The path must start with "apps", "prjs", or "tools".</remarks>
+    public void DeleteFile(String devicePath) throws ArgumentException, IOException {
+        Command c = new Command(Enums.CommandType.SystemReply);
+        c.DeleteFile(devicePath);
+        _brick.SendCommand(c);
+        if(c.Response.SystemReplyStatus != Enums.SystemReplyStatus.Success)
+            throw new IOException("Error deleting file: " + c.Response.SystemReplyStatus);
+    }
+
+    /// <summary>
+    /// Delete file from the EV3 brick without blocking
+    /// </summary>
+    /// <param name="devicePath">Destination path on the brick.</param>
+    /// <returns>A future that completes when the file has been deleted, or fails with an IOException</returns>
+    public CompletableFuture<Void> DeleteFileAsync(String devicePath) throws ArgumentException {
+        Command c = new Command(Enums.CommandType.SystemReply);
+        c.DeleteFile(devicePath);
+        return _brick.SendCommandAsync(c).thenApply(StatusCheck("Error deleting file: "));
+    }
+
+    private static Function<Command, Void> StatusCheck(final String message) {
+        return new Function<Command, Void>() {
+            @Override
+            public Void apply(Command c) {
+                if (c.Response.SystemReplyStatus != Enums.SystemReplyStatus.Success)
+                    throw new CompletionException(new IOException(message + c.Response.SystemReplyStatus));
+                return null;
+            }
+        };
+    }
+
+    private byte[] GetFileContents(String localPath) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(localPath, "r");
+        try {
+            byte[] data = new byte[(int)f.length()];
+            f.readFully(data);
+            return data;
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package lego.ev3.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/// <summary>
+/// Hashed timing wheel for reply deadlines.  Deadlines are kept in buckets by the tick they expire in and one thread
+/// advances the wheel, so scheduling and cancelling are O(1) however many requests are outstanding across all bricks.
+/// Expiry is accurate to one tick.
+/// </summary>
+final class TimingWheel {
+    /// <summary>
+    /// The wheel shared by all bricks.  Its thread is started when the first deadline is scheduled.  10 ms ticks and
+    /// 512 buckets: deadlines up to about 5 seconds expire on the first turn of the wheel.
+    /// </summary>
+    static final TimingWheel Shared = new TimingWheel("EV3 timing wheel", 10, 512);
+
+    /// <summary>
+    /// A scheduled deadline
+    /// </summary>
+    static final class Timeout {
+        private final Runnable _task;
+        private final long _deadline;
+        private long _rounds;
+        private volatile boolean _cancelled;
+        // bucket list, only touched by the wheel thread
+        private Timeout _next;
+
+        private Timeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        /// <summary>
+        /// Stop the task from running.  Has no effect once the task has run.
+        /// </summary>
+        void Cancel() {
+            _cancelled = true;
+        }
+    }
+
+    private final String _name;
+    private final long _tickNanos;
+    private final Timeout[] _buckets;
+    // deadlines scheduled since the last tick, moved into the buckets by the wheel thread
+    private final ConcurrentLinkedQueue<Timeout> _added = new ConcurrentLinkedQueue<Timeout>();
+    private final long _start = System.nanoTime();
+    private long _tick;
+    private volatile Thread _thread;
+
+    /// <summary>
+    /// Constructor
+    /// </summary>
+    /// <param name="name">Name of the wheel thread</param>
+    /// <param name="tickMillis">Length of a tick, which is how accurately deadlines expire</param>
+    /// <param name="wheelSize">Number of buckets, a power of two</param>
+    TimingWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+
+        _name = name;
+        _tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        _buckets = new Timeout[wheelSize];
+    }
+
+    /// <summary>
+    /// Run a task once the delay has elapsed.  The task runs on the wheel thread and must be short.
+    /// </summary>
+    /// <param name="task">What to do when the deadline passes</param>
+    /// <param name="delayMillis">Delay in milliseconds</param>
+    /// <returns>Handle to cancel the deadline</returns>
+    Timeout Schedule(Runnable task, long delayMillis) {
+        if (_thread == null)
+            Start();
+
+        Timeout t = new Timeout(task, System.nanoTime() - _start + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        _added.add(t);
+        return t;
+    }
+
+    private synchronized void Start() {
+        if (_thread != null)
+            return;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Run();
+            }
+        }, _name);
+        thread.setDaemon(true);
+        thread.start();
+        _thread = thread;
+    }
+
+    private void Run() {
+        while (true) {
+            long next = (_tick + 1) * _tickNanos;
+            long sleep = next - (System.nanoTime() - _start);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // the wheel runs for the life of the process
+                }
+                continue;
+            }
+
+            AddScheduled();
+            ExpireCurrent();
+            _tick++;
+        }
+    }
+
+    private void AddScheduled() {
+        Timeout t;
+        while ((t = _added.poll()) != null) {
+            if (t._cancelled)
+                continue;
+
+            // deadlines already due go into the current bucket
+            long ticks = Math.max(t._deadline / _tickNanos, _tick);
+            t._rounds = (ticks - _tick) / _buckets.length;
+            int bucket = (int)(ticks & (_buckets.length - 1));
+            t._next = _buckets[bucket];
+            _buckets[bucket] = t;
+        }
+    }
+
+    private void ExpireCurrent() {
+        int bucket = (int)(_tick & (_buckets.length - 1));
+        Timeout t = _buckets[bucket];
+        _buckets[bucket] = null;
+
+        while (t != null) {
+            Timeout next = t._next;
+            t._next = null;
+            if (t._cancelled) {
+                // dropped
+            } else if (t._rounds > 0) {
+                t._rounds--;
+                t._next = _buckets[bucket];
+                _buckets[bucket] = t;
+            } else {
+                try {
+                    t._task.run();
+                } catch (RuntimeException e) {
+                    // one failing task must not stop the wheel
+                }
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// Growth of the backing array, little-endian encoding and reuse of <see cref="BinaryWriter"/>.
+/// </summary>
+public class BinaryWriterTest {
+    @Test
+    public void growsPastItsInitialCapacityKeepingWhatWasWritten() {
+        BinaryWriter writer = new BinaryWriter(1);
+        for (int i = 0; i < 1000; i++)
+            writer.Write((byte)i);
+
+        assertEquals(1000, writer.Size());
+        byte[] array = writer.ToArray();
+        assertEquals(1000, array.length);
+        for (int i = 0; i < array.length; i++)
+            assertEquals((byte)i, array[i]);
+    }
+
+    @Test
+    public void growsWhenAMultiByteValueCrossesTheEnd() {
+        BinaryWriter writer = new BinaryWriter(3);
+        writer.Write((byte)0x01);
+        writer.Write((short)0x0302);
+        writer.Write(0x07060504);
+        writer.Write(new byte[] { 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, writer.ToArray());
+    }
+
+    @Test
+    public void writesLittleEndian() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.Write((short)-2);
+        writer.Write(0x80000001);
+
+        assertArrayEquals(new byte[] { (byte)0xfe, (byte)0xff, 0x01, 0x00, 0x00, (byte)0x80 }, writer.ToArray());
+        ByteBuffer view = writer.AsByteBuffer();
+        assertEquals(6, view.remaining());
+        assertEquals((short)-2, view.getShort(0));
+        assertEquals(0x80000001, view.getInt(2));
+    }
+
+    @Test
+    public void putOverwritesInPlace() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.Write((short)0);
+        writer.Write((byte)0x2a);
+        writer.Put(0, (short)0x1234);
+
+        assertArrayEquals(new byte[] { 0x34, 0x12, 0x2a }, writer.ToArray());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void putPastTheEndIsRejected() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.Write((byte)0);
+        writer.Put(0, (short)0);
+    }
+
+    @Test
+    public void resetKeepsTheBackingStore() {
+        BinaryWriter writer = new BinaryWriter(2);
+        for (int i = 0; i < 100; i++)
+            writer.Write(i);
+        writer.Reset();
+
+        assertEquals(0, writer.Size());
+        assertEquals(0, writer.ToArray().length);
+        writer.Write((byte)7);
+        assertArrayEquals(new byte[] { 7 }, writer.ToArray());
+        // the grown array is kept, so the view has room for what was written before
+        assertTrue(writer.AsByteBuffer().capacity() >= 400);
+    }
+}
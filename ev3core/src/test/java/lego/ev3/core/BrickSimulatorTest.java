@@ -0,0 +1,339 @@
+package lego.ev3.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/// <summary>
+/// Round trips through <see cref="BrickSimulator"/>: replies reaching the right command, timeouts, the in-flight
+/// window, latest-wins motor frames and commands split over several frames.
+/// </summary>
+public class BrickSimulatorTest {
+    private BrickSimulator _sim;
+
+    @Before
+    public void setUp() throws ArgumentException {
+        _sim = new BrickSimulator();
+        _sim.SetSensor(Enums.InputPort.One, Enums.DeviceType.Ultrasonic, 11f);
+        _sim.SetSensor(Enums.InputPort.Two, Enums.DeviceType.Ultrasonic, 22f);
+        _sim.SetSensor(Enums.InputPort.Three, Enums.DeviceType.Ultrasonic, 33f);
+        _sim.SetSensor(Enums.InputPort.Four, Enums.DeviceType.Ultrasonic, 44f);
+    }
+
+    @After
+    public void tearDown() {
+        _sim.Disconnect();
+    }
+
+    @Test
+    public void repliesReachTheCommandThatAskedForThem() throws Throwable {
+        final Brick brick = new Brick(_sim);
+        brick.Connect();
+        final DirectCommand d = brick.getDirectCommand();
+        final Enums.InputPort[] ports = { Enums.InputPort.One, Enums.InputPort.Two, Enums.InputPort.Three, Enums.InputPort.Four };
+        final AtomicInteger wrong = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < ports.length; t++) {
+            final Enums.InputPort port = ports[t];
+            final float expected = 11f * (t + 1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            if (d.ReadySI(port, 0) != expected)
+                                wrong.incrementAndGet();
+                            if (d.ReadySIAsync(port, 0).get(5, TimeUnit.SECONDS) != expected)
+                                wrong.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, wrong.get());
+        assertEquals(0, brick.getStaleReplies());
+        assertEquals(0, brick.getDuplicateReplies());
+        assertEquals(0, brick.getUnknownReplies());
+    }
+
+    @Test
+    public void blockingReadThrowsWhenNoReplyArrives() throws Throwable {
+        Brick brick = new Brick(_sim);
+        brick.Connect();
+        _sim.setLatency(Command.DefaultTimeout + 200);
+
+        try {
+            brick.getDirectCommand().ReadySI(Enums.InputPort.One, 0);
+            fail("expected a timeout");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void lateReplyIsDroppedAndTheSequenceNumberReused() throws Throwable {
+        Brick brick = new Brick(_sim);
+        brick.Connect();
+        _sim.setLatency(300);
+
+        Command c = brick.AcquireCommand(Enums.CommandType.DirectReply);
+        ReplyValue.FloatValue value = c.ReadySI(Enums.InputPort.One, 0);
+        c.Timeout = 50;
+        try {
+            brick.SendCommandAsync(c).get(5, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(c.Response.isTimedOut());
+        assertFalse(value.isReady());
+
+        // the reply to the timed out command arrives while the next one is waiting, and must not complete it
+        c.Timeout = Command.DefaultTimeout;
+        brick.SendCommand(c);
+        assertTrue(value.isReady());
+        assertEquals(11f, value.getValue(), 0f);
+        assertEquals(1, brick.getStaleReplies());
+        brick.ReleaseCommand(c);
+    }
+
+    @Test
+    public void windowLimitsCommandsInFlight() throws Throwable {
+        CountingLink link = new CountingLink(_sim);
+        Brick brick = new Brick(link);
+        brick.Connect();
+        brick.setMaxInFlight(2);
+        _sim.setLatency(2);
+
+        List<CompletableFuture<Float>> futures = new ArrayList<CompletableFuture<Float>>();
+        for (int i = 0; i < 100; i++)
+            futures.add(brick.getDirectCommand().ReadySIAsync(Enums.InputPort.Two, 0));
+        for (CompletableFuture<Float> future : futures)
+            assertEquals(22f, future.get(10, TimeUnit.SECONDS), 0f);
+
+        assertEquals(2, link.MaxInFlight.get());
+        assertEquals(0, link.InFlight.get());
+    }
+
+    @Test
+    public void queuedCommandTimesOutWhileTheWindowIsFull() throws Throwable {
+        Brick brick = new Brick(_sim);
+        brick.Connect();
+        brick.setMaxInFlight(1);
+        _sim.setLatency(500);
+
+        Command first = brick.AcquireCommand(Enums.CommandType.DirectReply);
+        first.ReadySI(Enums.InputPort.One, 0);
+        Command queued = brick.AcquireCommand(Enums.CommandType.DirectReply);
+        queued.ReadySI(Enums.InputPort.One, 0);
+        queued.Timeout = 100;
+
+        CompletableFuture<Command> firstReply = brick.SendCommandAsync(first);
+        long start = System.nanoTime();
+        try {
+            brick.SendCommandAsync(queued).get(5, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // the deadline ran from when the command was queued, not from when the window had room
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        firstReply.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void newerMotorFrameReplacesOneNotYetSent() throws Throwable {
+        final CountDownLatch release = new CountDownLatch(1);
+        final FrameWriter writer = new FrameWriter(new OutputStream() {
+            private final byte[] _one = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                _one[0] = (byte)b;
+                write(_one, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    // hold the first write up, so later frames wait in the writer's queue
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                _sim.Write(b, off, len);
+            }
+        }, "test writer");
+        Brick brick = new Brick(new WriterLink(_sim, writer));
+        writer.Start();
+        brick.Connect();
+
+        DirectCommand d = brick.getDirectCommand();
+        // wait for the writer thread to take the stop sent by Connect, so what follows is queued behind it
+        while (writer.getQueuedFrames() != 0)
+            Thread.sleep(1);
+        for (int speed = 1; speed <= 50; speed++)
+            d.TurnMotorAtSpeed(OutputPort.A, speed);
+        assertEquals(1, writer.getQueuedFrames());
+
+        release.countDown();
+        d.GetFirmwareVersion();
+        assertEquals(49, writer.getReplacedFrames());
+        assertEquals(50, _sim.getMotorSpeed(OutputPort.A));
+        writer.Close();
+    }
+
+    @Test
+    public void oversizedCommandIsSplitAndMerged() throws Throwable {
+        Brick brick = new Brick(_sim);
+        brick.Connect();
+        Enums.InputPort[] ports = { Enums.InputPort.One, Enums.InputPort.Two, Enums.InputPort.Three, Enums.InputPort.Four };
+
+        for (int round = 0; round < 2; round++) {
+            Command c = new Command(Enums.CommandType.DirectReply);
+            List<ReplyValue.FloatValue> values = new ArrayList<ReplyValue.FloatValue>();
+            for (int i = 0; i < 300; i++)
+                values.add(c.ReadySI(ports[i % ports.length], 0));
+            assertTrue(c.NeedsSplit());
+
+            if (round == 0)
+                brick.SendCommand(c);
+            else
+                brick.SendCommandAsync(c).get(5, TimeUnit.SECONDS);
+
+            assertTrue(c.Response.hasData());
+            assertEquals(values.size() * 4, c.Response.getLength());
+            for (int i = 0; i < values.size(); i++) {
+                assertTrue(values.get(i).isReady());
+                assertEquals(11f * (i % ports.length + 1), values.get(i).getValue(), 0f);
+            }
+        }
+    }
+
+    // passes frames to the simulator, counting the reply commands that have been written but not yet answered
+    private static final class CountingLink implements ICommunication, ICommunication.IReportReceiver {
+        final AtomicInteger InFlight = new AtomicInteger();
+        final AtomicInteger MaxInFlight = new AtomicInteger();
+        private final BrickSimulator _sim;
+        private IReportReceiver _receiver;
+
+        CountingLink(BrickSimulator sim) {
+            _sim = sim;
+        }
+
+        @Override
+        public void SetReportReceiver(IReportReceiver receiver) {
+            _receiver = receiver;
+            _sim.SetReportReceiver(this);
+        }
+
+        @Override
+        public void Connect() {
+            _sim.Connect();
+        }
+
+        @Override
+        public void Disconnect() {
+            _sim.Disconnect();
+        }
+
+        @Override
+        public void Write(byte[] data) {
+            Write(data, 0, data.length);
+        }
+
+        @Override
+        public void Write(byte[] data, int offset, int length) {
+            // byte 4 is the command type, after the size and the sequence number
+            if (data[offset + 4] == (byte)Enums.CommandType.DirectReply.getValue()) {
+                int inFlight = InFlight.incrementAndGet();
+                int max;
+                while (inFlight > (max = MaxInFlight.get()) && !MaxInFlight.compareAndSet(max, inFlight)) {
+                }
+            }
+            _sim.Write(data, offset, length);
+        }
+
+        @Override
+        public void ReceiveReport(byte[] data) {
+            ReceiveReport(data, data.length);
+        }
+
+        @Override
+        public void ReceiveReport(byte[] buffer, int length) {
+            // before the brick sees the reply, which may send the next command straight away
+            InFlight.decrementAndGet();
+            _receiver.ReceiveReport(buffer, length);
+        }
+
+        @Override
+        public byte[] AcquireBuffer(int length) {
+            return _receiver.AcquireBuffer(length);
+        }
+    }
+
+    // writes to the simulator through a FrameWriter, so latest-wins frames can be replaced while they wait
+    private static final class WriterLink implements ICommunication {
+        private final BrickSimulator _sim;
+        private final FrameWriter _writer;
+
+        WriterLink(BrickSimulator sim, FrameWriter writer) {
+            _sim = sim;
+            _writer = writer;
+        }
+
+        @Override
+        public void SetReportReceiver(IReportReceiver receiver) {
+            _sim.SetReportReceiver(receiver);
+        }
+
+        @Override
+        public void Connect() {
+            _sim.Connect();
+        }
+
+        @Override
+        public void Disconnect() {
+            _writer.Close();
+            _sim.Disconnect();
+        }
+
+        @Override
+        public void Write(byte[] data) {
+            Write(data, 0, data.length);
+        }
+
+        @Override
+        public void Write(byte[] data, int offset, int length) {
+            _writer.Write(data, offset, length);
+        }
+
+        @Override
+        public void WriteLatest(int ports, byte[] data, int offset, int length) {
+            _writer.WriteLatest(ports, data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/// <summary>
+/// Shortest-form encoding of direct command parameters: LC0, LC1, LC2 and LC4 at the edges of each range, and GV0
+/// for global indices.
+/// </summary>
+public class CommandParameterTest {
+    private interface Append {
+        void To(Command c);
+    }
+
+    // the bytes a parameter adds to a direct command
+    private static byte[] Encode(Enums.CommandType type, Append append) throws ArgumentException {
+        Command c = new Command(type);
+        int before = c.ToBytes().length;
+        append.To(c);
+        byte[] frame = c.ToBytes();
+        return Arrays.copyOfRange(frame, before, frame.length);
+    }
+
+    private static byte[] Encode(final byte value) throws ArgumentException {
+        return Encode(Enums.CommandType.DirectNoReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddParameter(value);
+            }
+        });
+    }
+
+    private static byte[] Encode(final short value) throws ArgumentException {
+        return Encode(Enums.CommandType.DirectNoReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddParameter(value);
+            }
+        });
+    }
+
+    private static byte[] Encode(final int value) throws ArgumentException {
+        return Encode(Enums.CommandType.DirectNoReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddParameter(value);
+            }
+        });
+    }
+
+    private static byte[] Bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte)values[i];
+        return bytes;
+    }
+
+    @Test
+    public void byteUsesLC0UpTo31() throws ArgumentException {
+        assertArrayEquals(Bytes(0x00), Encode((byte)0));
+        assertArrayEquals(Bytes(0x1f), Encode((byte)31));
+        assertArrayEquals(Bytes(0x21), Encode((byte)-31));
+        assertArrayEquals(Bytes(0x81, 0x20), Encode((byte)32));
+        assertArrayEquals(Bytes(0x81, 0xe0), Encode((byte)-32));
+        assertArrayEquals(Bytes(0x81, 0x7f), Encode((byte)127));
+        assertArrayEquals(Bytes(0x81, 0x80), Encode((byte)-128));
+    }
+
+    @Test
+    public void shortUsesLC1UpTo127() throws ArgumentException {
+        assertArrayEquals(Bytes(0x1f), Encode((short)31));
+        assertArrayEquals(Bytes(0x81, 0x7f), Encode((short)127));
+        assertArrayEquals(Bytes(0x81, 0x81), Encode((short)-127));
+        assertArrayEquals(Bytes(0x82, 0x80, 0x00), Encode((short)128));
+        assertArrayEquals(Bytes(0x82, 0x80, 0xff), Encode((short)-128));
+        assertArrayEquals(Bytes(0x82, 0xff, 0x7f), Encode(Short.MAX_VALUE));
+    }
+
+    @Test
+    public void intUsesLC2UpTo32767() throws ArgumentException {
+        assertArrayEquals(Bytes(0x05), Encode(5));
+        assertArrayEquals(Bytes(0x81, 0x64), Encode(100));
+        assertArrayEquals(Bytes(0x82, 0xff, 0x7f), Encode(32767));
+        assertArrayEquals(Bytes(0x82, 0x01, 0x80), Encode(-32767));
+        assertArrayEquals(Bytes(0x83, 0x00, 0x80, 0x00, 0x00), Encode(32768));
+        assertArrayEquals(Bytes(0x83, 0x00, 0x80, 0xff, 0xff), Encode(-32768));
+        assertArrayEquals(Bytes(0x83, 0xff, 0xff, 0xff, 0x7f), Encode(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void globalIndexUsesGV0Below32() throws ArgumentException {
+        assertArrayEquals(Bytes(0x7f), Encode(Enums.CommandType.DirectReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddGlobalIndex((byte)31);
+            }
+        }));
+        assertArrayEquals(Bytes(0xe1, 0x20), Encode(Enums.CommandType.DirectReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddGlobalIndex((byte)32);
+            }
+        }));
+    }
+
+    @Test
+    public void systemCommandsKeepTheLongFormat() throws ArgumentException {
+        assertArrayEquals(Bytes(0x81, 0x05), Encode(Enums.CommandType.SystemReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddParameter((byte)5);
+            }
+        }));
+        assertArrayEquals(Bytes(0xe1, 0x00), Encode(Enums.CommandType.SystemReply, new Append() {
+            @Override
+            public void To(Command c) {
+                c.AddGlobalIndex((byte)0);
+            }
+        }));
+    }
+}
@@ -0,0 +1,145 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// Splitting of direct commands that exceed the 1024 byte frame or global buffer limits, and merging of the replies
+/// to the parts back into the original command.
+/// </summary>
+public class CommandSplitTest {
+    // four 255 byte strings and three 1 byte values fill the largest global buffer a frame can have
+    private static Command FullGlobalBuffer() throws ArgumentException {
+        Command c = new Command(Enums.CommandType.DirectReply);
+        for (int i = 0; i < 4; i++)
+            c.GetFirmwareVersion(255);
+        for (int i = 0; i < 3; i++)
+            c.ReadyPercent(Enums.InputPort.One, 0);
+        return c;
+    }
+
+    @Test
+    public void commandAtTheGlobalLimitIsNotSplit() throws ArgumentException {
+        Command c = FullGlobalBuffer();
+
+        assertEquals(1023, c.getGlobalSize());
+        assertFalse(c.NeedsSplit());
+        // the size goes in the low 10 bits of the header
+        byte[] frame = c.ToBytes();
+        assertEquals(1023, (frame[5] & 0xff) | (frame[6] & 0x03) << 8);
+    }
+
+    @Test
+    public void commandOverTheGlobalLimitIsSplitAtTheLimit() throws ArgumentException {
+        Command c = FullGlobalBuffer();
+        c.ReadyPercent(Enums.InputPort.Two, 0);
+        assertTrue(c.NeedsSplit());
+
+        List<Command> parts = c.Split();
+        assertEquals(2, parts.size());
+        assertEquals(0, parts.get(0).GlobalBase);
+        assertEquals(Command.MaxGlobalSize, parts.get(0).getGlobalSize());
+        assertEquals(Command.MaxGlobalSize, parts.get(1).GlobalBase);
+        assertEquals(1, parts.get(1).getGlobalSize());
+
+        // index 1023 was encoded in the long form; rebased to 0 it keeps its width
+        byte[] frame = parts.get(1).ToBytes();
+        assertEquals((byte)0xe2, frame[frame.length - 3]);
+        assertEquals(0, frame[frame.length - 2]);
+        assertEquals(0, frame[frame.length - 1]);
+    }
+
+    @Test
+    public void longCommandIsSplitIntoFramesThatFit() throws ArgumentException {
+        Command c = new Command(Enums.CommandType.DirectReply);
+        for (int i = 0; i < 300; i++)
+            c.ReadyRaw(Enums.InputPort.One, 0);
+        assertTrue(c.ToBytes().length > Command.MaxFrameSize);
+
+        int base = 0;
+        for (Command part : c.Split()) {
+            assertTrue(part.ToBytes().length <= Command.MaxFrameSize);
+            assertTrue(part.getGlobalSize() <= Command.MaxGlobalSize);
+            assertEquals(base, part.GlobalBase);
+            base += part.getGlobalSize();
+        }
+        assertEquals(300 * 4, base);
+    }
+
+    @Test
+    public void repliesAreMergedAtTheOffsetOfEachPart() throws ArgumentException {
+        Brick brick = new Brick(new CountingReplies());
+        brick.Connect();
+
+        Command c = new Command(Enums.CommandType.DirectReply);
+        List<ReplyValue.IntValue> values = new ArrayList<ReplyValue.IntValue>();
+        for (int i = 0; i < 300; i++)
+            values.add(c.ReadyRaw(Enums.InputPort.One, 0));
+        brick.SendCommand(c);
+
+        // the link answers with consecutive ints across all parts, so each value reads back its own position
+        for (int i = 0; i < values.size(); i++) {
+            assertTrue(values.get(i).isReady());
+            assertEquals(i, values.get(i).getValue());
+        }
+    }
+
+    // answers every reply command with a global buffer of ints that count up from one reply to the next
+    private static final class CountingReplies implements ICommunication {
+        private IReportReceiver _receiver;
+        private int _next;
+
+        @Override
+        public void SetReportReceiver(IReportReceiver receiver) {
+            _receiver = receiver;
+        }
+
+        @Override
+        public void Connect() {
+        }
+
+        @Override
+        public void Disconnect() {
+        }
+
+        @Override
+        public void Write(byte[] data) {
+            Write(data, 0, data.length);
+        }
+
+        @Override
+        public void Write(byte[] data, int offset, int length) {
+            if (data[offset + 4] != (byte)Enums.CommandType.DirectReply.getValue())
+                return;
+
+            // llllllgg gggggggg after the size, sequence number and command type
+            int globalSize = (data[offset + 5] & 0xff) | (data[offset + 6] & 0x03) << 8;
+            // reports reach the receiver without the size in front
+            final byte[] reply = new byte[3 + globalSize];
+            reply[0] = data[offset + 2];
+            reply[1] = data[offset + 3];
+            reply[2] = (byte)Enums.ReplyType.DirectReply.getValue();
+            for (int i = 3; i + 4 <= reply.length; i += 4) {
+                int value = _next++;
+                reply[i] = (byte)value;
+                reply[i + 1] = (byte)(value >> 8);
+                reply[i + 2] = (byte)(value >> 16);
+                reply[i + 3] = (byte)(value >> 24);
+            }
+
+            // from another thread, as a real link would
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    _receiver.ReceiveReport(reply);
+                }
+            }).start();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package lego.ev3.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// Links served by <see cref="ConnectionManager"/>: traffic in both directions, reconnecting a link and closing the
+/// manager.
+/// </summary>
+public class ConnectionManagerTest {
+    private static final String Serial = "0016533F0C1E";
+
+    private ConnectionManager _manager;
+    private ServerSocket _server;
+
+    @Before
+    public void setUp() throws IOException {
+        _manager = new ConnectionManager(2);
+        _server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        _server.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _manager.Close();
+        _server.close();
+    }
+
+    private static byte[] Frame(byte... report) {
+        byte[] frame = new byte[report.length + 2];
+        frame[0] = (byte)report.length;
+        frame[1] = (byte)(report.length >> 8);
+        System.arraycopy(report, 0, frame, 2, report.length);
+        return frame;
+    }
+
+    private static void AwaitDisconnected(ConnectionManager.Link link) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (link.isConnected() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertFalse(link.isConnected());
+    }
+
+    // unlocks every connection made to the server, then echoes each frame back as a report
+    private AtomicInteger EchoBrick() {
+        final AtomicInteger connections = new AtomicInteger();
+        Thread brick = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = _server.accept();
+                        connections.incrementAndGet();
+                        Thread echo = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Echo(socket);
+                            }
+                        });
+                        echo.setDaemon(true);
+                        echo.start();
+                    }
+                } catch (IOException e) {
+                    // the server was closed at the end of the test
+                }
+            }
+        });
+        brick.setDaemon(true);
+        brick.start();
+        return connections;
+    }
+
+    private static void Echo(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            while (!header.toString("US-ASCII").endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if (b < 0)
+                    return;
+                header.write(b);
+            }
+            out.write("Accept:EV340\r\n\r\n".getBytes("US-ASCII"));
+
+            DataInputStream frames = new DataInputStream(in);
+            while (true) {
+                int length = frames.readUnsignedByte() | frames.readUnsignedByte() << 8;
+                byte[] frame = new byte[length + 2];
+                frame[0] = (byte)length;
+                frame[1] = (byte)(length >> 8);
+                frames.readFully(frame, 2, length);
+                out.write(frame);
+            }
+        } catch (IOException e) {
+            // the link hung up
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    @Test
+    public void reconnectedLinkUsesANewConnection() throws Exception {
+        AtomicInteger connections = EchoBrick();
+        Reports reports = new Reports();
+        ConnectionManager.Link link = _manager.OpenTcp(InetAddress.getLoopbackAddress().getHostAddress(), _server.getLocalPort(), Serial);
+        link.SetReportReceiver(reports);
+
+        link.Connect();
+        assertNull(link.getFailure());
+        assertTrue(link.isConnected());
+        link.Write(Frame((byte)1, (byte)2, (byte)3));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+
+        link.Disconnect();
+        assertFalse(link.isConnected());
+        // dropped while disconnected
+        link.Write(Frame((byte)9));
+
+        link.Connect();
+        assertNull(link.getFailure());
+        assertTrue(link.isConnected());
+        link.Write(Frame((byte)4, (byte)5, (byte)6));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, connections.get());
+        assertNull(reports.Queue.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void linkWhoseBrickHangsUpCanReconnect() throws Exception {
+        Reports reports = new Reports();
+        ConnectionManager.Link link = _manager.OpenTcp(InetAddress.getLoopbackAddress().getHostAddress(), _server.getLocalPort(), Serial);
+        link.SetReportReceiver(reports);
+
+        // unlock, then hang up
+        Thread brick = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = _server.accept();
+                    socket.getOutputStream().write("Accept:EV340\r\n\r\n".getBytes("US-ASCII"));
+                    Thread.sleep(50);
+                    socket.close();
+                } catch (Exception e) {
+                    // the test fails on the assertions below
+                }
+            }
+        });
+        brick.start();
+        link.Connect();
+        brick.join();
+        AwaitDisconnected(link);
+        assertNotNull(link.getFailure());
+
+        EchoBrick();
+        link.Connect();
+        assertNull(link.getFailure());
+        link.Write(Frame((byte)7));
+        assertArrayEquals(new byte[] { 7 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pipeLinkCarriesReportsAndFrames() throws Exception {
+        Pipe toHost = Pipe.open();
+        Pipe toBrick = Pipe.open();
+        Reports reports = new Reports();
+        ConnectionManager.Link link = _manager.Open(toHost.source(), toBrick.sink());
+        link.SetReportReceiver(reports);
+        link.Connect();
+
+        // two reports in one write, then one cut in half
+        toHost.sink().write(ByteBuffer.wrap(new byte[] { 1, 0, 11, 2, 0, 21, 22, 3, 0, 31 }));
+        assertArrayEquals(new byte[] { 11 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 21, 22 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+        toHost.sink().write(ByteBuffer.wrap(new byte[] { 32, 33 }));
+        assertArrayEquals(new byte[] { 31, 32, 33 }, reports.Queue.poll(5, TimeUnit.SECONDS));
+
+        link.Write(Frame((byte)5, (byte)6));
+        ByteBuffer written = ByteBuffer.allocate(4);
+        while (written.hasRemaining())
+            toBrick.source().read(written);
+        assertArrayEquals(Frame((byte)5, (byte)6), written.array());
+    }
+
+    @Test
+    public void closeDisconnectsEveryLink() throws Exception {
+        ConnectionManager.Link[] links = new ConnectionManager.Link[3];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = _manager.Open(Pipe.open().source(), Pipe.open().sink());
+            links[i].SetReportReceiver(new Reports());
+            links[i].Connect();
+            assertTrue(links[i].isConnected());
+        }
+        // some may not have been registered with their I/O thread yet
+        _manager.Close();
+
+        for (ConnectionManager.Link link : links)
+            AwaitDisconnected(link);
+    }
+
+    // queues a copy of each report it receives
+    private static final class Reports implements ICommunication.IReportReceiver {
+        final BlockingQueue<byte[]> Queue = new ArrayBlockingQueue<byte[]>(16);
+
+        @Override
+        public void ReceiveReport(byte[] data) {
+            Queue.add(data.clone());
+        }
+
+        @Override
+        public void ReceiveReport(byte[] buffer, int length) {
+            Queue.add(Arrays.copyOf(buffer, length));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// Reassembly of length-prefixed reports from reads that end part way through a report or hold several.
+/// </summary>
+public class FrameDecoderTest {
+    private static byte[] Report(int length, int seed) {
+        byte[] report = new byte[length];
+        for (int i = 0; i < length; i++)
+            report[i] = (byte)(seed + i);
+        return report;
+    }
+
+    // the reports as they arrive on the wire, each preceded by its length
+    private static byte[] Wire(byte[]... reports) {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (byte[] report : reports) {
+            wire.write(report.length);
+            wire.write(report.length >> 8);
+            wire.write(report, 0, report.length);
+        }
+        return wire.toByteArray();
+    }
+
+    private static void AssertReports(List<byte[]> received, byte[]... expected) {
+        assertEquals(expected.length, received.size());
+        for (int i = 0; i < expected.length; i++)
+            assertArrayEquals(expected[i], received.get(i));
+    }
+
+    @Test
+    public void reportSplitAcrossReadsIsReassembled() {
+        byte[] report = Report(20, 1);
+        byte[] wire = Wire(report);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder();
+
+        for (int i = 0; i < wire.length - 1; i++) {
+            decoder.Decode(wire, i, 1, collector);
+            assertEquals(i + 1, decoder.getPending());
+        }
+        assertTrue(collector.Reports.isEmpty());
+
+        decoder.Decode(wire, wire.length - 1, 1, collector);
+        AssertReports(collector.Reports, report);
+        assertEquals(0, decoder.getPending());
+    }
+
+    @Test
+    public void reportsCoalescedInOneReadAreAllDelivered() {
+        byte[] first = Report(5, 10);
+        byte[] empty = new byte[0];
+        byte[] third = Report(300, 20);
+        byte[] wire = Wire(first, empty, third);
+        Collector collector = new Collector();
+
+        new FrameDecoder().Decode(wire, 0, wire.length, collector);
+
+        AssertReports(collector.Reports, first, empty, third);
+    }
+
+    @Test
+    public void everyWayOfCuttingTheStreamGivesTheSameReports() {
+        byte[][] reports = { Report(3, 1), Report(40, 2), Report(1, 3), Report(17, 4) };
+        byte[] wire = Wire(reports);
+
+        for (int chunk = 1; chunk <= wire.length; chunk++) {
+            Collector collector = new Collector();
+            FrameDecoder decoder = new FrameDecoder();
+            for (int offset = 0; offset < wire.length; offset += chunk)
+                decoder.Decode(wire, offset, Math.min(chunk, wire.length - offset), collector);
+
+            AssertReports(collector.Reports, reports);
+            assertEquals(0, decoder.getPending());
+        }
+    }
+
+    @Test
+    public void reportLargerThanTheBufferIsReassembled() {
+        byte[] small = Report(10, 5);
+        byte[] large = Report(10000, 6);
+        byte[] wire = Wire(small, large, small);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder();
+
+        for (int offset = 0; offset < wire.length; offset += 1000)
+            decoder.Decode(wire, offset, Math.min(1000, wire.length - offset), collector);
+
+        AssertReports(collector.Reports, small, large, small);
+    }
+
+    @Test
+    public void readsFromAStreamUntilItEnds() throws IOException {
+        byte[][] reports = { Report(8, 1), Report(5000, 2), Report(2, 3) };
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder();
+        InputStream in = new TrickleStream(Wire(reports), 7);
+
+        while (decoder.Read(in, collector)) {
+        }
+
+        AssertReports(collector.Reports, reports);
+        assertFalse(decoder.Read(in, collector));
+    }
+
+    @Test
+    public void resetDropsAPartialReport() {
+        byte[] report = Report(6, 9);
+        byte[] wire = Wire(Report(30, 1));
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder();
+
+        decoder.Decode(wire, 0, 10, collector);
+        decoder.Reset();
+        assertEquals(0, decoder.getPending());
+
+        byte[] next = Wire(report);
+        decoder.Decode(next, 0, next.length, collector);
+        AssertReports(collector.Reports, report);
+    }
+
+    // keeps a copy of each report it receives
+    private static final class Collector implements ICommunication.IReportReceiver {
+        final List<byte[]> Reports = new ArrayList<byte[]>();
+
+        @Override
+        public void ReceiveReport(byte[] data) {
+            Reports.add(data.clone());
+        }
+
+        @Override
+        public void ReceiveReport(byte[] buffer, int length) {
+            Reports.add(Arrays.copyOf(buffer, length));
+        }
+    }
+
+    // returns at most a few bytes from each read, like a slow link
+    private static final class TrickleStream extends InputStream {
+        private final byte[] _data;
+        private final int _chunk;
+        private int _position;
+
+        TrickleStream(byte[] data, int chunk) {
+            _data = data;
+            _chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return _position < _data.length ? _data[_position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (_position == _data.length)
+                return -1;
+
+            int n = Math.min(Math.min(len, _chunk), _data.length - _position);
+            System.arraycopy(_data, _position, b, off, n);
+            _position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package lego.ev3.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// The Wi-Fi unlock handshake and report traffic of <see cref="NetworkCommunication"/>, against a socket standing in
+/// for the brick.
+/// </summary>
+public class NetworkCommunicationTest {
+    private static final Charset Ascii = Charset.forName("US-ASCII");
+    private static final String Serial = "0016533F0C1E";
+    private static final String Unlock = "GET /target?sn=" + Serial + "VMTP1.0\r\nProtocol: EV3\r\n\r\n";
+    private static final byte[] Accept = "Accept:EV340\r\n\r\n".getBytes(Ascii);
+
+    private ServerSocket _server;
+    private NetworkCommunication _comm;
+    private final Reports _reports = new Reports();
+
+    @Before
+    public void setUp() throws IOException {
+        _server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        _server.setSoTimeout(5000);
+        _comm = new NetworkCommunication(InetAddress.getLoopbackAddress().getHostAddress(), _server.getLocalPort(), Serial);
+        _comm.SetReportReceiver(_reports);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _comm.Disconnect();
+        _server.close();
+    }
+
+    private static String ReadHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("connection closed in the header");
+            header.write(b);
+        }
+        return header.toString("US-ASCII");
+    }
+
+    private static byte[] Frame(byte... report) {
+        byte[] frame = new byte[report.length + 2];
+        frame[0] = (byte)report.length;
+        frame[1] = (byte)(report.length >> 8);
+        System.arraycopy(report, 0, frame, 2, report.length);
+        return frame;
+    }
+
+    private static byte[] Concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    // plays the brick's side of the handshake on a thread, answering with the given bytes
+    private void PlayBrick(final byte[] answer, final int pieces, final BlockingQueue<Object> received) {
+        Thread brick = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = _server.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    received.add(ReadHeader(in));
+
+                    // in pieces, so the reply header arrives over several reads
+                    int piece = (answer.length + pieces - 1) / pieces;
+                    for (int offset = 0; offset < answer.length; offset += piece) {
+                        out.write(answer, offset, Math.min(piece, answer.length - offset));
+                        out.flush();
+                        Thread.sleep(20);
+                    }
+
+                    byte[] frame = new byte[5];
+                    int read = 0;
+                    while (read < frame.length) {
+                        int n = in.read(frame, read, frame.length - read);
+                        if (n < 0)
+                            break;
+                        read += n;
+                    }
+                    received.add(Arrays.copyOf(frame, read));
+                    socket.close();
+                } catch (Exception e) {
+                    received.add(e);
+                }
+            }
+        });
+        brick.setDaemon(true);
+        brick.start();
+    }
+
+    @Test
+    public void unlocksWithTheSerialNumberAndExchangesReports() throws Exception {
+        BlockingQueue<Object> received = new ArrayBlockingQueue<Object>(4);
+        // a report sent straight after the unlock reply arrives in the same read as it
+        PlayBrick(Concat(Accept, Frame((byte)1, (byte)0, (byte)2)), 1, received);
+
+        _comm.Connect();
+
+        assertNull(_comm.getFailure());
+        assertTrue(_comm.isConnected());
+        assertEquals(Unlock, received.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1, 0, 2 }, _reports.Queue.poll(5, TimeUnit.SECONDS));
+
+        _comm.Write(Frame((byte)7, (byte)8, (byte)9));
+        assertArrayEquals(Frame((byte)7, (byte)8, (byte)9), (byte[])received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unlockReplyMayArriveInPieces() throws Exception {
+        BlockingQueue<Object> received = new ArrayBlockingQueue<Object>(4);
+        PlayBrick(Accept, Accept.length, received);
+
+        _comm.Connect();
+
+        assertNull(_comm.getFailure());
+        assertTrue(_comm.isConnected());
+    }
+
+    @Test
+    public void refusedUnlockLeavesTheConnectionClosed() throws Exception {
+        BlockingQueue<Object> received = new ArrayBlockingQueue<Object>(4);
+        PlayBrick("Reject:EV340\r\n\r\n".getBytes(Ascii), 1, received);
+
+        _comm.Connect();
+
+        assertFalse(_comm.isConnected());
+        assertNotNull(_comm.getFailure());
+        assertTrue(_comm.getFailure().getMessage().contains("refused"));
+        // writes are dropped rather than failing
+        _comm.Write(Frame((byte)1));
+    }
+
+    @Test
+    public void brickClosingTheConnectionIsReported() throws Exception {
+        BlockingQueue<Object> received = new ArrayBlockingQueue<Object>(4);
+        PlayBrick(Accept, 1, received);
+        _comm.Connect();
+        assertTrue(_comm.isConnected());
+
+        // the brick hangs up once it has read a frame
+        _comm.Write(Frame((byte)1, (byte)2, (byte)3));
+        received.poll(5, TimeUnit.SECONDS);
+        received.poll(5, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (_comm.isConnected() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+
+        assertFalse(_comm.isConnected());
+        assertNotNull(_comm.getFailure());
+    }
+
+    @Test
+    public void connectionRefusedIsReported() throws Exception {
+        _server.close();
+
+        _comm.Connect();
+
+        assertFalse(_comm.isConnected());
+        assertNotNull(_comm.getFailure());
+    }
+
+    // queues a copy of each report it receives
+    private static final class Reports implements ICommunication.IReportReceiver {
+        final BlockingQueue<byte[]> Queue = new ArrayBlockingQueue<byte[]>(16);
+
+        @Override
+        public void ReceiveReport(byte[] data) {
+            Queue.add(data.clone());
+        }
+
+        @Override
+        public void ReceiveReport(byte[] buffer, int length) {
+            Queue.add(Arrays.copyOf(buffer, length));
+        }
+    }
+}
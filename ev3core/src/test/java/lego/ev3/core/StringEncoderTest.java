@@ -0,0 +1,56 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/// <summary>
+/// Encoding and eviction of the string parameter cache.  A cached string comes back as the same array, so identity
+/// tells whether an entry survived.
+/// </summary>
+public class StringEncoderTest {
+    // more than the cache holds, so every entry that is not read again is evicted
+    private static final int Strings = 200;
+
+    @Test
+    public void encodesExactLengthUtf8() {
+        assertArrayEquals(new byte[] { 'a', (byte)0xc3, (byte)0xb6, 'b' }, StringEncoder.Encode("a\u00f6b"));
+        assertArrayEquals(new byte[0], StringEncoder.Encode(""));
+    }
+
+    @Test
+    public void repeatedStringIsEncodedOnce() {
+        byte[] first = StringEncoder.Encode("../prjs/Repeated/sound");
+        assertSame(first, StringEncoder.Encode("../prjs/Repeated/sound"));
+    }
+
+    @Test
+    public void entryReadBetweenInsertionsIsKept() {
+        byte[] kept = StringEncoder.Encode("../prjs/Kept/file");
+        for (int i = 0; i < Strings; i++) {
+            StringEncoder.Encode("../prjs/Filler/kept" + i);
+            assertSame(kept, StringEncoder.Encode("../prjs/Kept/file"));
+        }
+    }
+
+    @Test
+    public void entryNotReadAgainIsEvicted() {
+        byte[] evicted = StringEncoder.Encode("../prjs/Evicted/file");
+        for (int i = 0; i < Strings; i++)
+            StringEncoder.Encode("../prjs/Filler/evicted" + i);
+
+        assertNotSame(evicted, StringEncoder.Encode("../prjs/Evicted/file"));
+    }
+
+    @Test
+    public void longStringIsNotCached() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            text.append('x');
+        String s = text.toString();
+
+        assertNotSame(StringEncoder.Encode(s), StringEncoder.Encode(s));
+    }
+}
@@ -0,0 +1,103 @@
+package lego.ev3.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// <summary>
+/// Deadlines on a <see cref="TimingWheel"/> small enough to turn many times during a test: 1 ms ticks and 8 buckets,
+/// so the wheel comes round every 8 ms.
+/// </summary>
+public class TimingWheelTest {
+    // how late a deadline may fire on a busy machine
+    private static final long SlackMillis = 500;
+
+    // one wheel for all the tests, as its thread runs until the process exits
+    private static final TimingWheel Wheel = new TimingWheel("test timing wheel", 1, 8);
+
+    // schedules a task and returns the time it ran, relative to when it was scheduled
+    private AtomicLong ScheduleTimed(long delayMillis, final CountDownLatch done) {
+        final AtomicLong elapsed = new AtomicLong(-1);
+        final long start = System.nanoTime();
+        Wheel.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                elapsed.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                done.countDown();
+            }
+        }, delayMillis);
+        return elapsed;
+    }
+
+    @Test
+    public void deadlinesExpireAfterTheirDelayOnAnyTurnOfTheWheel() throws InterruptedException {
+        // within the first turn, exactly one turn, just past it and several turns out
+        long[] delays = { 0, 3, 8, 9, 30, 100 };
+        CountDownLatch done = new CountDownLatch(delays.length);
+        AtomicLong[] elapsed = new AtomicLong[delays.length];
+        for (int i = 0; i < delays.length; i++)
+            elapsed[i] = ScheduleTimed(delays[i], done);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue("deadline " + delays[i] + " ran early at " + elapsed[i].get(), elapsed[i].get() >= delays[i]);
+            assertTrue("deadline " + delays[i] + " ran late at " + elapsed[i].get(), elapsed[i].get() < delays[i] + SlackMillis);
+        }
+    }
+
+    @Test
+    public void deadlineScheduledWhileTheWheelTurnsStillWaitsForAllItsRounds() throws InterruptedException {
+        CountDownLatch first = new CountDownLatch(1);
+        ScheduleTimed(5, first);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        // the wheel is now part way through a turn
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong elapsed = ScheduleTimed(50, done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed.get() >= 50);
+    }
+
+    @Test
+    public void cancelledDeadlineDoesNotRun() throws InterruptedException {
+        final AtomicBoolean ran = new AtomicBoolean();
+        TimingWheel.Timeout t = Wheel.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 20);
+        t.Cancel();
+
+        // tasks in the same and later buckets run after it would have
+        CountDownLatch done = new CountDownLatch(1);
+        ScheduleTimed(40, done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        Wheel.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failing task");
+            }
+        }, 1);
+
+        CountDownLatch done = new CountDownLatch(1);
+        ScheduleTimed(10, done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wheelSizeMustBeAPowerOfTwo() {
+        new TimingWheel("test timing wheel", 1, 12);
+    }
+}